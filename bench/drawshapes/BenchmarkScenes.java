@@ -0,0 +1,105 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds the random scenes the benchmarks run against. The same size,
+ * mix and seed always give the same shapes, so runs can be compared.
+ */
+class BenchmarkScenes
+{
+    static final long SEED = 42;
+    private static final Color[] COLORS = {Color.RED, Color.BLUE, Color.GREEN};
+
+    // private constructor
+    private BenchmarkScenes() {}
+
+    /**
+     * The side of the square area the shapes are spread over. It grows
+     * with the number of shapes so that the density stays about the same.
+     * @param size
+     * @return
+     */
+    static int worldSize(int size) {
+        return Math.max(1000, (int)Math.sqrt(size) * 40);
+    }
+
+    /**
+     * Create random shapes.
+     * @param size how many shapes
+     * @param mix MIXED, or one of SQUARE, CIRCLE, RECTANGLE and TRIANGLE
+     * @param seed
+     * @return
+     */
+    static List<IShape> shapes(int size, String mix, long seed) {
+        Random random = new Random(seed);
+        int world = worldSize(size);
+        List<IShape> shapes = new ArrayList<IShape>(size);
+        for (int i = 0; i < size; i++) {
+            shapes.add(shape(random, world, mix.equals("MIXED") ? i % 4 : typeOf(mix)));
+        }
+        return shapes;
+    }
+
+    /**
+     * Create a scene holding random shapes.
+     * @param size
+     * @param mix
+     * @return
+     */
+    static Scene scene(int size, String mix) {
+        return scene(size, mix, false);
+    }
+
+    /**
+     * Create a scene holding random shapes, in list or compact storage.
+     * @param size
+     * @param mix
+     * @param compact
+     * @return
+     */
+    static Scene scene(int size, String mix, boolean compact) {
+        Scene scene = new Scene(compact);
+        for (IShape s : shapes(size, mix, SEED)) {
+            scene.addShape(s);
+        }
+        return scene;
+    }
+
+    private static int typeOf(String mix) {
+        switch (mix) {
+        case "SQUARE":
+            return 0;
+        case "CIRCLE":
+            return 1;
+        case "RECTANGLE":
+            return 2;
+        case "TRIANGLE":
+            return 3;
+        default:
+            throw new IllegalArgumentException("Unknown shape mix: " + mix);
+        }
+    }
+
+    private static IShape shape(Random random, int world, int type) {
+        Color color = COLORS[random.nextInt(COLORS.length)];
+        int x = random.nextInt(world);
+        int y = random.nextInt(world);
+        int a = 10 + random.nextInt(40);
+        int b = 10 + random.nextInt(40);
+        switch (type) {
+        case 0:
+            return new Square(color, x, y, a);
+        case 1:
+            return new Circle(color, new Point(x, y), a);
+        case 2:
+            return new Rectangle(new Point(x, y), a, b, color);
+        default:
+            return new Triangle(color, new Point(x, y), a, b);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package drawshapes;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks BoundingBox.intersects by testing one box against every
+ * box of a random scene, which is what a linear selection scan does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BoundingBoxBenchmark
+{
+    @Param({"1000", "10000", "100000"})
+    int size;
+
+    @Param({"MIXED", "SQUARE", "CIRCLE", "RECTANGLE", "TRIANGLE"})
+    String mix;
+
+    private BoundingBox[] boxes;
+    private int probe;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<IShape> shapes = BenchmarkScenes.shapes(size, mix, BenchmarkScenes.SEED);
+        boxes = new BoundingBox[shapes.size()];
+        for (int i = 0; i < boxes.length; i++) {
+            boxes[i] = shapes.get(i).getBoundingBox();
+        }
+    }
+
+    @Benchmark
+    public int intersects() {
+        probe = (probe + 1) % boxes.length;
+        BoundingBox box = boxes[probe];
+        int hits = 0;
+        for (BoundingBox other : boxes) {
+            if (box.intersects(other)) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+}
@@ -0,0 +1,146 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the Scene operations the UI leans on. Run with
+ *
+ *   java -jar target/benchmarks.jar SceneBenchmark -rf json
+ *
+ * Every benchmark runs against scenes of each size and shape mix, in
+ * both list and compact storage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class SceneBenchmark
+{
+    private static final int PROBES = 1024;
+
+    @Param({"1000", "10000", "100000"})
+    int size;
+
+    @Param({"MIXED", "SQUARE", "CIRCLE", "RECTANGLE", "TRIANGLE"})
+    String mix;
+
+    @Param({"false", "true"})
+    boolean compact;
+
+    private Scene scene;
+    private List<IShape> shapes;
+    private Point[] points;
+    private File file;
+    private BufferedImage image;
+    private int probe;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        scene = BenchmarkScenes.scene(size, mix, compact);
+        shapes = BenchmarkScenes.shapes(size, mix, BenchmarkScenes.SEED);
+        Random random = new Random(BenchmarkScenes.SEED);
+        int world = BenchmarkScenes.worldSize(size);
+        points = new Point[PROBES];
+        for (int i = 0; i < PROBES; i++) {
+            points[i] = new Point(random.nextInt(world), random.nextInt(world));
+        }
+        file = File.createTempFile("scene", ".txt");
+        scene.saveToFile(file);
+        image = new BufferedImage(1024, 768, BufferedImage.TYPE_INT_RGB);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    private int nextProbe() {
+        probe = (probe + 1) & (PROBES - 1);
+        return probe;
+    }
+
+    @Benchmark
+    public List<IShape> selectPoint() {
+        return scene.select(points[nextProbe()]);
+    }
+
+    @Benchmark
+    public IShape pickTopmost() {
+        return scene.pickTopmost(points[nextProbe()]);
+    }
+
+    @Benchmark
+    public List<IShape> selectShape() {
+        // the probe shapes are equal copies of shapes in the scene
+        return scene.select(shapes.get(nextProbe() % shapes.size()));
+    }
+
+    @Benchmark
+    public long findOverlaps() {
+        // counting is all the handler does, so this times the sweep itself
+        return scene.findOverlaps(true, new Scene.OverlapHandler() {
+            public void overlap(IShape a, IShape b) {
+            }
+        });
+    }
+
+    @Benchmark
+    public Scene copy() {
+        return scene.copy();
+    }
+
+    @Benchmark
+    public Scene copyThenEdit() {
+        // copy() defers copying the shapes, so this times the first edit too
+        Scene copy = scene.copy();
+        copy.addShape(shapes.get(nextProbe() % shapes.size()).copy());
+        return copy;
+    }
+
+    @Benchmark
+    public Scene loadFromFile() throws IOException {
+        Scene loaded = new Scene();
+        loaded.loadFromFile(file);
+        return loaded;
+    }
+
+    @Benchmark
+    public String serialize() {
+        return scene.toString();
+    }
+
+    @Benchmark
+    public BufferedImage draw() {
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        scene.draw(g);
+        g.dispose();
+        return image;
+    }
+}
@@ -24,7 +24,11 @@ public abstract class AbstractShape implements IShape
     }
     
     protected void setBoundingBox(int left, int right, int top, int bottom) {
-        this.boundingBox = new BoundingBox(left, right, top, bottom);
+        if (this.boundingBox == null) {
+            this.boundingBox = new BoundingBox(left, right, top, bottom);
+        } else {
+            this.boundingBox.set(left, right, top, bottom);
+        }
     }
 
     /* (non-Javadoc)
@@ -35,7 +39,13 @@ public abstract class AbstractShape implements IShape
         if (this == other || other == null){
             return false;
         }
-        return this.boundingBox.intersects(other.getBoundingBox());
+        // the boxes rule out most pairs before the exact test
+        if (!this.boundingBox.intersects(other.getBoundingBox())) {
+            return false;
+        }
+        Outline mine = outline();
+        Outline theirs = Outline.of(other);
+        return mine == null || theirs == null || mine.intersects(theirs);
     }
 
     /* (non-Javadoc)
@@ -43,7 +53,19 @@ public abstract class AbstractShape implements IShape
      */
     @Override
     public boolean contains(Point point) {
-        return this.boundingBox.contains(point);
+        if (!this.boundingBox.contains(point)) {
+            return false;
+        }
+        Outline mine = outline();
+        return mine == null || mine.contains(point.x, point.y);
+    }
+    
+    /**
+     * The exact area draw() fills, or null to go by the bounding box.
+     * @return
+     */
+    Outline outline() {
+        return null;
     }
 
     /* (non-Javadoc)
@@ -105,6 +127,37 @@ public abstract class AbstractShape implements IShape
 
     }
 
+    /**
+     * The color to fill the shape with: darker when it is selected.
+     * @return
+     */
+    Color drawColor() {
+        return selected ? Util.darker(color) : color;
+    }
+
+    /**
+     * Add the area draw() fills to the batch.
+     * @param batch
+     */
+    abstract void addTo(ShapeBatcher.Batch batch);
+
+    /**
+     * Copy the anchor point and the two sizes into geometry[i] to
+     * geometry[i + 3].
+     */
+    abstract void getGeometry(int[] geometry, int i);
+
+    /**
+     * Put back geometry saved by getGeometry().
+     */
+    abstract void setGeometry(int[] geometry, int i);
+
+    /**
+     * Move and stretch the shape as the transform says.
+     * @param t
+     */
+    abstract void transform(ShapeTransform t);
+
     @Override
     public IShape copy(){
         return null;
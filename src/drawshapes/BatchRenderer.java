@@ -0,0 +1,224 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Renders saved scene files to PNG images without opening a window,
+ * so it can run on servers with no display:
+ *
+ *   java -cp ... drawshapes.BatchRenderer [-threads n] [-tiles n] [-size WxH] outputDir scene...
+ *
+ * Each argument after the output directory is a scene file, or a
+ * directory whose .txt and .dsb files are all rendered. Scene a/b.txt
+ * becomes outputDir/b.txt.png, keeping the extension so that b.txt and
+ * b.dsb don't overwrite each other; two scenes with the same name in
+ * different directories are refused before anything is rendered. Files
+ * are rendered on a fixed number of worker
+ * threads, and the number of files per second is printed at the end.
+ * With -tiles, each image is also split into tiles that are drawn on
+ * that many more threads, which helps when there are a few big scenes.
+ */
+public class BatchRenderer
+{
+    static final int DEFAULT_WIDTH = 700;
+    static final int DEFAULT_HEIGHT = 600;
+
+    private final File outputDir;
+    private final int width;
+    private final int height;
+    // when not null, each image is drawn on several threads
+    private ParallelRenderer tiles;
+    private final AtomicInteger rendered = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    BatchRenderer(File outputDir, int width, int height) {
+        this.outputDir = outputDir;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Render one scene file and write it as a PNG in the output directory.
+     * @param file
+     * @throws IOException
+     */
+    void render(File file) throws IOException {
+        Scene scene = new Scene();
+        // the files themselves are rendered in parallel, so parse each on one thread
+        scene.loadFromFile(file, false);
+        BufferedImage image;
+        if (tiles != null) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            try {
+                tiles.render(scene, image, Color.WHITE);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while rendering " + file);
+            }
+        } else {
+            image = render(scene, width, height);
+        }
+        ImageIO.write(image, "png", outputFile(file));
+    }
+
+    /**
+     * Draw a scene on a white image of the given size.
+     * @param scene
+     * @param width
+     * @param height
+     * @return
+     */
+    static BufferedImage render(Scene scene, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        scene.draw(g);
+        g.dispose();
+        return image;
+    }
+
+    private File outputFile(File file) {
+        return new File(outputDir, file.getName() + ".png");
+    }
+
+    /**
+     * Return the first scene whose image would overwrite another's, or
+     * null if every scene gets its own image.
+     * @param files
+     * @return
+     */
+    File findClash(List<File> files) {
+        Set<File> outputs = new HashSet<File>();
+        for (File file : files) {
+            if (!outputs.add(outputFile(file).getAbsoluteFile())) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Is the file one of the kinds of scene file the program saves?
+     */
+    private static boolean isSceneFile(File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".txt") || name.endsWith(BinarySceneFormat.EXTENSION);
+    }
+
+    /**
+     * Render every file, using the given number of threads. The queue of
+     * waiting files is bounded, so when the workers fall behind the
+     * calling thread renders files itself instead of queueing more.
+     * @param files
+     * @param threads
+     * @throws InterruptedException
+     */
+    void renderAll(List<File> files, int threads) throws InterruptedException {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+        for (final File file : files) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        render(file);
+                        rendered.incrementAndGet();
+                    } catch (IOException | RuntimeException e) {
+                        failed.incrementAndGet();
+                        System.err.println(file + ": " + e.getMessage());
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+    private static void usage() {
+        System.err.println("usage: BatchRenderer [-threads n] [-tiles n] [-size WxH] outputDir scene...");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws InterruptedException
+    {
+        if (System.getProperty("java.awt.headless") == null) {
+            System.setProperty("java.awt.headless", "true");
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        int tileThreads = 0;
+        int width = DEFAULT_WIDTH;
+        int height = DEFAULT_HEIGHT;
+        int i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("-"); i++) {
+                if (args[i].equals("-threads") && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-tiles") && i + 1 < args.length) {
+                    tileThreads = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-size") && i + 1 < args.length) {
+                    String[] size = args[++i].split("x");
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                } else {
+                    usage();
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            usage();
+        }
+        if (args.length - i < 2 || threads < 1 || tileThreads < 0 || width < 1 || height < 1) {
+            usage();
+        }
+        File outputDir = new File(args[i++]);
+        outputDir.mkdirs();
+        List<File> files = new ArrayList<File>();
+        for (; i < args.length; i++) {
+            File f = new File(args[i]);
+            File[] children = f.listFiles();
+            if (children == null) {
+                files.add(f);
+            } else {
+                for (File child : children) {
+                    if (child.isFile() && isSceneFile(child)) {
+                        files.add(child);
+                    }
+                }
+            }
+        }
+
+        BatchRenderer renderer = new BatchRenderer(outputDir, width, height);
+        File clash = renderer.findClash(files);
+        if (clash != null) {
+            System.err.println("more than one scene is named " + clash.getName());
+            System.exit(2);
+        }
+        if (tileThreads > 0) {
+            renderer.tiles = new ParallelRenderer(tileThreads, ParallelRenderer.DEFAULT_TILE_SIZE);
+        }
+        long start = System.nanoTime();
+        renderer.renderAll(files, threads);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Rendered %d files (%d failed) in %.2f s: %.1f files/sec\n",
+                renderer.rendered.get(), renderer.failed.get(), seconds,
+                renderer.rendered.get() / seconds);
+        if (renderer.failed.get() > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * A compact binary file format for scenes.
+ *
+ * The file starts with a 16 byte header: the magic number "DSHB", a
+ * version number, and the number of shapes as a long. After that every
+ * shape is one fixed-size record:
+ *
+ *   byte type      0 square, 1 circle, 2 rectangle, 3 triangle
+ *   byte color     0 red, 1 blue, 2 green
+ *   byte selected  0 or 1
+ *   byte unused
+ *   int  x, y      the center of the shape
+ *   int  a, b      length/unused, diameter/unused, width/height or base/height
+ *
+ * All numbers are big-endian. Files are read and written through a
+ * memory mapping, so loading is little more than walking the records.
+ */
+class BinarySceneFormat
+{
+    static final int MAGIC = 0x44534842; // "DSHB"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 20;
+    static final String EXTENSION = ".dsb";
+
+    private static final byte SQUARE = 0;
+    private static final byte CIRCLE = 1;
+    private static final byte RECTANGLE = 2;
+    private static final byte TRIANGLE = 3;
+    private static final Color[] COLORS = {Color.RED, Color.BLUE, Color.GREEN};
+
+    // private constructor
+    private BinarySceneFormat() {}
+
+    /**
+     * Does the given file start with the binary scene header?
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    static boolean isBinary(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            return in.length() >= 4 && in.readInt() == MAGIC;
+        }
+    }
+
+    /**
+     * Should a scene saved under this name use the binary format?
+     * @param file
+     * @return
+     */
+    static boolean hasBinaryExtension(File file) {
+        return file.getName().toLowerCase().endsWith(EXTENSION);
+    }
+
+    /**
+     * Write the given shapes to a binary scene file, replacing it. The
+     * shapes go to a temporary file in the same directory first, which
+     * is then moved over the target, so if writing fails part way the
+     * old file is left as it was.
+     * @param file
+     * @param shapes
+     * @param count the number of shapes
+     * @param progress told how many shapes have been written so far, or null
+     * @throws IOException
+     */
+    static void write(File file, Iterable<IShape> shapes, int count, IntConsumer progress) throws IOException {
+        long size = HEADER_SIZE + (long)RECORD_SIZE * count;
+        File temp = File.createTempFile(file.getName() + "-", ".tmp", file.getAbsoluteFile().getParentFile());
+        boolean done = false;
+        try {
+            writeMapped(temp, shapes, count, size, progress);
+            try {
+                Files.move(temp.toPath(), file.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                temp.delete();
+            }
+        }
+    }
+
+    private static void writeMapped(File file, Iterable<IShape> shapes, int count, long size,
+            IntConsumer progress) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw");
+                FileChannel channel = out.getChannel()) {
+            out.setLength(size);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buf.putInt(MAGIC);
+            buf.putInt(VERSION);
+            buf.putLong(count);
+            int written = 0;
+            for (IShape s : shapes) {
+                writeShape(buf, s);
+                written++;
+                if (progress != null && written % SceneWriter.PROGRESS_STEP == 0) {
+                    progress.accept(written);
+                }
+            }
+            if (progress != null) {
+                progress.accept(written);
+            }
+            buf.force();
+        }
+    }
+
+    /**
+     * Read every shape in a binary scene file, in order.
+     * @param file
+     * @return
+     * @throws IOException if the file can't be read, or SceneFormatException
+     *      if the header or a record is wrong
+     */
+    static List<IShape> read(File file) throws IOException {
+        ByteBuffer buf = SceneParser.map(file);
+        if (buf.limit() < HEADER_SIZE || buf.getInt() != MAGIC) {
+            throw new SceneFormatException(0, "not a binary scene file");
+        }
+        int version = buf.getInt();
+        if (version != VERSION) {
+            throw new SceneFormatException(0, "unsupported binary scene version " + version);
+        }
+        long count = buf.getLong();
+        if (count < 0 || count != (buf.limit() - HEADER_SIZE) / RECORD_SIZE) {
+            throw new SceneFormatException(0, "header says " + count + " shapes but the file holds "
+                    + (buf.limit() - HEADER_SIZE) / RECORD_SIZE);
+        }
+        List<IShape> shapes = new ArrayList<IShape>((int)count);
+        for (int i = 0; i < count; i++) {
+            shapes.add(readShape(buf, i));
+        }
+        return shapes;
+    }
+
+    private static void writeShape(ByteBuffer buf, IShape s) {
+        if (s instanceof CompactShapeStore.ShapeView) {
+            s = s.copy();
+        }
+        byte type;
+        int x, y, a, b = 0;
+        if (s instanceof Square) {
+            Square sq = (Square)s;
+            type = SQUARE;
+            x = sq.getAnchorPoint().x + sq.width/2;
+            y = sq.getAnchorPoint().y + sq.width/2;
+            a = sq.width;
+        } else if (s instanceof Rectangle) {
+            Rectangle r = (Rectangle)s;
+            type = RECTANGLE;
+            x = r.getAnchorPoint().x + r.width/2;
+            y = r.getAnchorPoint().y + r.height/2;
+            a = r.width;
+            b = r.height;
+        } else if (s instanceof Circle) {
+            Circle c = (Circle)s;
+            type = CIRCLE;
+            x = c.getAnchorPoint().x;
+            y = c.getAnchorPoint().y;
+            a = c.getDiameter();
+        } else if (s instanceof Triangle) {
+            Triangle t = (Triangle)s;
+            type = TRIANGLE;
+            x = t.getAnchorPoint().x;
+            y = t.getAnchorPoint().y;
+            a = t.base;
+            b = t.height;
+        } else {
+            throw new UnsupportedOperationException("Unexpected shape: "+s);
+        }
+        buf.put(type);
+        buf.put(colorId(s.getColor()));
+        buf.put((byte)(s.isSelected() ? 1 : 0));
+        buf.put((byte)0);
+        buf.putInt(x);
+        buf.putInt(y);
+        buf.putInt(a);
+        buf.putInt(b);
+    }
+
+    private static IShape readShape(ByteBuffer buf, int i) throws SceneFormatException {
+        byte type = buf.get();
+        byte colorId = buf.get();
+        boolean selected = buf.get() != 0;
+        buf.get();
+        int x = buf.getInt();
+        int y = buf.getInt();
+        int a = buf.getInt();
+        int b = buf.getInt();
+        if (colorId < 0 || colorId >= COLORS.length) {
+            throw new SceneFormatException(i + 1, "unexpected color id " + colorId);
+        }
+        Color color = COLORS[colorId];
+        IShape s;
+        switch (type) {
+        case SQUARE:
+            s = new Square(color, x, y, a);
+            break;
+        case CIRCLE:
+            s = new Circle(color, new Point(x, y), a);
+            break;
+        case RECTANGLE:
+            s = new Rectangle(new Point(x, y), a, b, color);
+            break;
+        case TRIANGLE:
+            s = new Triangle(color, new Point(x, y), a, b);
+            break;
+        default:
+            throw new SceneFormatException(i + 1, "unexpected shape type " + type);
+        }
+        s.setSelected(selected);
+        return s;
+    }
+
+    private static byte colorId(Color color) {
+        for (int i = 0; i < COLORS.length; i++) {
+            if (COLORS[i] == color) {
+                return (byte)i;
+            }
+        }
+        throw new UnsupportedOperationException("Unexpected color: "+color);
+    }
+}
@@ -2,54 +2,73 @@ package drawshapes;
 
 import java.awt.Point;
 
+/**
+ * An axis-aligned box around a shape. Edges are part of the box.
+ *
+ * The box is just four ints, normalized so that left <= right and
+ * top <= bottom, and it is changed in place when its shape moves or
+ * changes size, so none of the operations here allocate.
+ */
 class BoundingBox
 {
     private int left;
     private int right;
     private int top;
     private int bottom;
-    private Point[] corners = new Point[4];
-    
+
     BoundingBox(int left, int right, int top, int bottom){
-        this.left = left;
-        this.right = right;
-        this.top = top;
-        this.bottom = bottom;
-        this.corners[0] = new Point(left, top);
-        this.corners[1] = new Point(left, bottom);
-        this.corners[2] = new Point(right, bottom);
-        this.corners[3] = new Point(right, top);
+        set(left, right, top, bottom);
+    }
+
+    /**
+     * Change the box in place. The sides can be given either way round.
+     */
+    void set(int left, int right, int top, int bottom) {
+        this.left = Math.min(left, right);
+        this.right = Math.max(left, right);
+        this.top = Math.min(top, bottom);
+        this.bottom = Math.max(top, bottom);
+    }
+
+    int getLeft() {
+        return left;
+    }
+
+    int getRight() {
+        return right;
+    }
+
+    int getTop() {
+        return top;
     }
-    
+
+    int getBottom() {
+        return bottom;
+    }
+
     boolean contains(Point p){
-        return p.x >= left && p.x <= right && p.y >= top && p.y <= bottom;
+        return contains(p.x, p.y);
+    }
+
+    boolean contains(int x, int y) {
+        return x >= left & x <= right & y >= top & y <= bottom;
     }
-    
+
+    /**
+     * Does this box overlap the given rectangle? Edges count as overlapping.
+     * The rectangle must have left <= right and top <= bottom.
+     */
+    boolean overlaps(int left, int right, int top, int bottom) {
+        // separating axis test; & rather than && so there is nothing to branch on
+        return this.left <= right & this.right >= left & this.top <= bottom & this.bottom >= top;
+    }
+
     public String toString() {
         return String.format("left=%d right=%d top=%d bottom=%d", this.left, this.right, this.top, this.bottom);
     }
-    
+
     boolean intersects(BoundingBox other){
-        // are any of my corners in their bounding box?
-        for (Point corner : corners){
-            if (other.contains(corner)){
-                return true;
-            }
-        }
-        // are any of their corners in my bounding box?
-        for (Point corner : other.corners){
-            if (this.contains(corner)){
-                return true;
-            }
-        }
-        // Check for the case where we intersect but no corners are contained
-        if (this.left < other.left && this.right > other.right && 
-                this.top > other.top && this.bottom < other.bottom)
-        {
-            return true;
-        }
-        return this.left > other.left && this.right < other.right &&
-                this.top < other.top && this.bottom > other.bottom;
+        return overlaps(other.left, other.right, other.top, other.bottom);
     }
 
     public void move(int dx, int dy){
@@ -57,9 +76,5 @@ class BoundingBox
         right += dx;
         top += dy;
         bottom += dy;
-        for(Point p : corners){
-            p.translate(dx, dy);
-        }
-        
     }
 }
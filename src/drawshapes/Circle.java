@@ -15,10 +15,14 @@ public class Circle extends AbstractShape
         this.diameter = diameter;
     }
 
+    int getDiameter() {
+        return diameter;
+    }
+
     @Override
     public void draw(Graphics g) {
         if (isSelected()){
-            g.setColor(this.color.darker());
+            g.setColor(Util.darker(color));
         } else {
             g.setColor(getColor());
         }
@@ -28,6 +32,39 @@ public class Circle extends AbstractShape
                 diameter);
     }
     
+    @Override
+    Outline outline() {
+        return Outline.circle(anchorPoint.x - diameter/2, anchorPoint.y - diameter/2, diameter);
+    }
+    
+    @Override
+    void addTo(ShapeBatcher.Batch batch) {
+        batch.addOval(anchorPoint.x - diameter/2, anchorPoint.y - diameter/2, diameter, diameter);
+    }
+    
+    @Override
+    void getGeometry(int[] geometry, int i) {
+        geometry[i] = anchorPoint.x;
+        geometry[i + 1] = anchorPoint.y;
+        geometry[i + 2] = diameter;
+    }
+
+    @Override
+    void setGeometry(int[] geometry, int i) {
+        setGeometry(geometry[i], geometry[i + 1], geometry[i + 2]);
+    }
+
+    @Override
+    void transform(ShapeTransform t) {
+        setGeometry(t.x(anchorPoint.x, anchorPoint.y, 0), t.y(anchorPoint.x, anchorPoint.y, 0), t.size(diameter));
+    }
+
+    private void setGeometry(int x, int y, int diameter) {
+        anchorPoint.setLocation(x, y);
+        this.diameter = diameter;
+        setBoundingBox(anchorPoint.x - diameter/2, anchorPoint.x + diameter/2, anchorPoint.y - diameter/2, anchorPoint.y + diameter/2);
+    }
+    
     public String toString() {
         return String.format("CIRCLE %d %d %d %s %s", 
                 this.getAnchorPoint().x, 
@@ -51,5 +88,6 @@ public class Circle extends AbstractShape
     @Override
     public void expand(int factor){
         diameter += factor;
+        setBoundingBox(anchorPoint.x - diameter/2, anchorPoint.x + diameter/2, anchorPoint.y - diameter/2, anchorPoint.y + diameter/2);
     }
 }
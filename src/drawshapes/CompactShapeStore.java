@@ -0,0 +1,958 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Point;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import drawshapes.DrawShapes.ShapeType;
+
+/**
+ * Stores shapes as parallel arrays of primitives instead of one object
+ * per shape. Slot i of every array describes the i-th shape in drawing
+ * order, so loops over the scene walk straight through memory.
+ *
+ * IShape objects are only created when someone asks for them. These
+ * views read and write the arrays, so changing a view changes the
+ * stored shape. A view refers to its slot number, so views taken
+ * before a remove() may point at a different shape afterwards.
+ *
+ * A store can also keep a SlotGrid of its slots, so drawing part of the
+ * scene and finding the shapes at a point only look at the shapes
+ * nearby. The grid is kept up to date by every change, and rebuilt
+ * after changes that renumber slots or move many of them, so queries
+ * only ever read it and several threads can draw from the store at
+ * once, as ParallelRenderer's tiles do.
+ */
+class CompactShapeStore implements Iterable<IShape>
+{
+    private static final ShapeType[] TYPES = ShapeType.values();
+
+    private int size;
+    private byte[] type = new byte[16];
+    // anchor point, same meaning as AbstractShape.anchorPoint for each type
+    private int[] x = new int[16];
+    private int[] y = new int[16];
+    // width/height, diameter/unused, or base/height depending on type
+    private int[] a = new int[16];
+    private int[] b = new int[16];
+    private int[] left = new int[16];
+    private int[] right = new int[16];
+    private int[] top = new int[16];
+    private int[] bottom = new int[16];
+    private byte[] colorIndex = new byte[16];
+    // one bit per slot, so selection operations skip unselected shapes a word at a time
+    private BitSet selected = new BitSet();
+    private List<Color> palette = new ArrayList<Color>();
+    // whether to keep a grid, and the grid, or null if not indexed
+    private boolean indexed;
+    private SlotGrid grid;
+
+    /**
+     * Choose whether to index the slots with a grid. The grid is built
+     * straight away, so it costs O(n) here rather than in a query.
+     * @param indexed
+     */
+    void setIndexed(boolean indexed) {
+        this.indexed = indexed;
+        rebuildGrid();
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+        selected.clear();
+        grid = indexed ? new SlotGrid() : null;
+    }
+
+    /**
+     * Copy the given shape into the next free slot.
+     * @param s
+     */
+    void add(IShape s) {
+        ensureCapacity(size + 1);
+        put(size, s);
+        if (grid != null) {
+            grid.add(size, left[size], right[size], top[size], bottom[size]);
+        }
+        size++;
+    }
+
+    void addAll(Collection<IShape> shapes) {
+        ensureCapacity(size + shapes.size());
+        for (IShape s : shapes) {
+            add(s);
+        }
+    }
+
+    /**
+     * Copy every shape in the other store onto the end of this one.
+     * @param other
+     */
+    void addAll(CompactShapeStore other) {
+        ensureCapacity(size + other.size);
+        for (int i = 0; i < other.size; i++) {
+            other.copySlot(i, this, size);
+            if (grid != null) {
+                grid.add(size, left[size], right[size], top[size], bottom[size]);
+            }
+            size++;
+        }
+    }
+
+    /**
+     * Overwrite slot i with a copy of the given shape.
+     * @param i
+     * @param s
+     */
+    void replace(int i, IShape s) {
+        put(i, s);
+        reindex(i);
+    }
+
+    /**
+     * Put shapes back into the slots they were removed from. The
+     * positions must be in increasing order and refer to the slot
+     * numbers the shapes will end up in.
+     * @param shapes
+     * @param positions
+     */
+    void insert(List<IShape> shapes, int[] positions) {
+        int m = shapes.size();
+        ensureCapacity(size + m);
+        int src = size - 1;
+        int j = m - 1;
+        for (int dst = size + m - 1; j >= 0; dst--) {
+            if (j >= 0 && positions[j] == dst) {
+                put(dst, shapes.get(j--));
+            } else {
+                copySlot(src--, this, dst);
+            }
+        }
+        size += m;
+        rebuildGrid();
+    }
+
+    /**
+     * Copy the given shape into slot i.
+     */
+    private void put(int i, IShape s) {
+        if (s instanceof ShapeView) {
+            ShapeView v = (ShapeView)s;
+            v.store().copySlot(v.slot(), this, i);
+            return;
+        }
+        if (s instanceof Square) {
+            Square sq = (Square)s;
+            set(i, ShapeType.SQUARE, sq.getAnchorPoint(), sq.width, sq.height);
+        } else if (s instanceof Rectangle) {
+            Rectangle r = (Rectangle)s;
+            set(i, ShapeType.RECTANGLE, r.getAnchorPoint(), r.width, r.height);
+        } else if (s instanceof Circle) {
+            Circle c = (Circle)s;
+            set(i, ShapeType.CIRCLE, c.getAnchorPoint(), c.getDiameter(), 0);
+        } else if (s instanceof Triangle) {
+            Triangle t = (Triangle)s;
+            set(i, ShapeType.TRIANGLE, t.getAnchorPoint(), t.base, t.height);
+        } else {
+            throw new IllegalArgumentException("Unexpected shape: "+s);
+        }
+        colorIndex[i] = colorIndexOf(s.getColor());
+        selected.set(i, s.isSelected());
+    }
+
+    /**
+     * Remove the shapes with the given views, closing up the gaps
+     * so the remaining shapes keep their drawing order.
+     * @param views
+     */
+    void remove(Collection<IShape> views) {
+        boolean[] doomed = new boolean[size];
+        for (IShape s : views) {
+            if (s instanceof ShapeView && ((ShapeView)s).store() == this) {
+                doomed[((ShapeView)s).slot()] = true;
+            }
+        }
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (!doomed[i]) {
+                if (kept != i) {
+                    copySlot(i, this, kept);
+                }
+                kept++;
+            }
+        }
+        selected.clear(kept, size);
+        size = kept;
+        rebuildGrid();
+    }
+
+    CompactShapeStore copy() {
+        CompactShapeStore c = new CompactShapeStore();
+        c.size = size;
+        c.type = Arrays.copyOf(type, size);
+        c.x = Arrays.copyOf(x, size);
+        c.y = Arrays.copyOf(y, size);
+        c.a = Arrays.copyOf(a, size);
+        c.b = Arrays.copyOf(b, size);
+        c.left = Arrays.copyOf(left, size);
+        c.right = Arrays.copyOf(right, size);
+        c.top = Arrays.copyOf(top, size);
+        c.bottom = Arrays.copyOf(bottom, size);
+        c.colorIndex = Arrays.copyOf(colorIndex, size);
+        c.selected = (BitSet)selected.clone();
+        c.palette = new ArrayList<Color>(palette);
+        return c;
+    }
+
+    IShape view(int slot) {
+        return new ShapeView(this, slot);
+    }
+
+    @Override
+    public Iterator<IShape> iterator() {
+        return iterator(0);
+    }
+
+    /**
+     * Iterate over views of the slots from the given one on.
+     * @param from
+     * @return
+     */
+    Iterator<IShape> iterator(final int from) {
+        return new Iterator<IShape>() {
+            private int next = from;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public IShape next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                return view(next++);
+            }
+        };
+    }
+
+    /**
+     * Draw the shapes whose bounds overlap the given rectangle, choosing
+     * whether to include unselected and selected shapes.
+     * @return the number of shapes drawn
+     */
+    int draw(Graphics g, int l, int r, int t, int bt, boolean unselected, boolean selected) {
+        ShapeBatcher batcher = ShapeBatcher.canBatch(g) ? new ShapeBatcher(g) : null;
+        // when zoomed out, shapes under a pixel are only drawn as cells of this
+        DensityGrid dots = DensityGrid.forGraphics(g);
+        int drawn = draw(g, l, r, t, bt, unselected, selected, batcher, dots);
+        if (batcher != null) {
+            batcher.flush();
+        }
+        if (dots != null) {
+            dots.draw(g);
+        }
+        return drawn;
+    }
+
+    /**
+     * Draw as above, but into a batcher and density grid that the
+     * caller flushes, so several stores can share them in one frame.
+     * @param batcher or null to draw each shape straight away
+     * @param dots or null to draw every shape, however small
+     * @return the number of shapes drawn
+     */
+    int draw(Graphics g, int l, int r, int t, int bt, boolean unselected, boolean selected,
+            ShapeBatcher batcher, DensityGrid dots) {
+        int drawn = 0;
+        int[] slots = near(l, r, t, bt);
+        int n = slots != null ? slots.length : size;
+        for (int k = 0; k < n; k++) {
+            int i = slots != null ? slots[k] : k;
+            if ((this.selected.get(i) ? selected : unselected)
+                    && left[i] <= r && right[i] >= l && top[i] <= bt && bottom[i] >= t) {
+                if (dots == null || !dots.add(left[i], right[i], top[i], bottom[i], drawColor(i))) {
+                    if (batcher == null) {
+                        drawSlot(g, i);
+                    } else {
+                        batchSlot(g, batcher, i);
+                    }
+                }
+                drawn++;
+            }
+        }
+        return drawn;
+    }
+
+    /**
+     * Return the union of the slots' bounds as {left, right, top,
+     * bottom}, or a range that overlaps nothing if there are no slots.
+     * @return
+     */
+    int[] bounds() {
+        int[] union = {Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for (int i = 0; i < size; i++) {
+            union[0] = Math.min(union[0], left[i]);
+            union[1] = Math.max(union[1], right[i]);
+            union[2] = Math.min(union[2], top[i]);
+            union[3] = Math.max(union[3], bottom[i]);
+        }
+        return union;
+    }
+
+    /**
+     * Return views of the shapes that cover the point.
+     * @param p
+     * @return
+     */
+    List<IShape> select(Point p) {
+        List<IShape> found = new ArrayList<IShape>();
+        SlotGrid g = grid;
+        if (g != null) {
+            for (int i : g.query(p.x, p.y)) {
+                if (boxContains(i, p) && outline(i).contains(p.x, p.y)) {
+                    found.add(view(i));
+                }
+            }
+            return found;
+        }
+        for (int i = 0; i < size; i++) {
+            if (boxContains(i, p) && outline(i).contains(p.x, p.y)) {
+                found.add(view(i));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Return a view of the last-drawn shape that covers the point, or
+     * null if there is none.
+     * @param p
+     * @return
+     */
+    IShape pickTopmost(Point p) {
+        SlotGrid g = grid;
+        if (g != null) {
+            int[] candidates = g.query(p.x, p.y);
+            for (int k = candidates.length - 1; k >= 0; k--) {
+                int i = candidates[k];
+                if (boxContains(i, p) && outline(i).contains(p.x, p.y)) {
+                    return view(i);
+                }
+            }
+            return null;
+        }
+        for (int i = size - 1; i >= 0; i--) {
+            if (boxContains(i, p) && outline(i).contains(p.x, p.y)) {
+                return view(i);
+            }
+        }
+        return null;
+    }
+
+    private boolean boxContains(int i, Point p) {
+        return p.x >= left[i] && p.x <= right[i] && p.y >= top[i] && p.y <= bottom[i];
+    }
+
+    /**
+     * Return views of the shapes that intersect the given shape, leaving
+     * out the shape itself if it lives in this store.
+     * @param shape
+     * @return
+     */
+    List<IShape> select(IShape shape) {
+        BoundingBox box = shape.getBoundingBox();
+        int self = -1;
+        if (shape instanceof ShapeView && ((ShapeView)shape).store() == this) {
+            self = ((ShapeView)shape).slot();
+        }
+        List<IShape> found = select(box.getLeft(), box.getRight(), box.getTop(), box.getBottom(), self);
+        Outline outline = Outline.of(shape);
+        if (outline != null) {
+            for (Iterator<IShape> it = found.iterator(); it.hasNext(); ) {
+                if (!outline((((ShapeView)it.next()).slot())).intersects(outline)) {
+                    it.remove();
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Return views of the shapes whose bounding box overlaps the given
+     * rectangle, which must have l <= r and t <= bt.
+     */
+    List<IShape> select(int l, int r, int t, int bt) {
+        return select(l, r, t, bt, -1);
+    }
+
+    private List<IShape> select(int l, int r, int t, int bt, int self) {
+        List<IShape> found = new ArrayList<IShape>();
+        int[] slots = near(l, r, t, bt);
+        int n = slots != null ? slots.length : size;
+        for (int k = 0; k < n; k++) {
+            int i = slots != null ? slots[k] : k;
+            if (i != self && left[i] <= r && right[i] >= l && top[i] <= bt && bottom[i] >= t) {
+                found.add(view(i));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Return the slots that might overlap the given rectangle, in order,
+     * or null if it's quicker to go through every slot.
+     */
+    private int[] near(int l, int r, int t, int bt) {
+        SlotGrid g = grid;
+        if (g == null || !g.isWorthQuerying(l, r, t, bt)) {
+            return null;
+        }
+        return g.query(l, r, t, bt);
+    }
+
+    /**
+     * Build the grid afresh if the store is indexed. The new grid is
+     * filled before it is stored, so it is never seen half built.
+     */
+    private void rebuildGrid() {
+        grid = null;
+        if (indexed) {
+            SlotGrid g = new SlotGrid();
+            for (int i = 0; i < size; i++) {
+                g.add(i, left[i], right[i], top[i], bottom[i]);
+            }
+            grid = g;
+        }
+    }
+
+    /**
+     * Bring slot i's place in the grid, if there is one, up to date
+     * with its bounds.
+     */
+    private void reindex(int i) {
+        if (grid != null) {
+            grid.update(i, left[i], right[i], top[i], bottom[i]);
+        }
+    }
+
+    /**
+     * Get ready to change the bounds of n slots one after another. If
+     * that is a good part of the store, drop the grid, so the slots
+     * aren't moved in it one at a time, and return true; the caller
+     * then calls rebuildGrid() once they have all changed.
+     */
+    private boolean changingMany(int n) {
+        if (n > size / 4) {
+            grid = null;
+            return true;
+        }
+        return false;
+    }
+
+    List<IShape> getSelected() {
+        List<IShape> found = new ArrayList<IShape>(selected.cardinality());
+        for (int i = selected.nextSetBit(0); i >= 0; i = selected.nextSetBit(i + 1)) {
+            found.add(view(i));
+        }
+        return found;
+    }
+
+    void clearSelection() {
+        selected.clear();
+    }
+
+    void moveSelected(int dx, int dy) {
+        boolean many = changingMany(selected.cardinality());
+        for (int i = selected.nextSetBit(0); i >= 0; i = selected.nextSetBit(i + 1)) {
+            move(i, dx, dy);
+        }
+        if (many) {
+            rebuildGrid();
+        }
+    }
+
+    void changeColor(Color color) {
+        byte c = colorIndexOf(color);
+        for (int i = selected.nextSetBit(0); i >= 0; i = selected.nextSetBit(i + 1)) {
+            colorIndex[i] = c;
+        }
+    }
+
+    void resize(int factor) {
+        boolean many = changingMany(selected.cardinality());
+        for (int i = selected.nextSetBit(0); i >= 0; i = selected.nextSetBit(i + 1)) {
+            expand(i, factor);
+        }
+        if (many) {
+            rebuildGrid();
+        }
+    }
+
+    /**
+     * Return the slots of the selected shapes, in order.
+     * @return
+     */
+    int[] selectedSlots() {
+        return selected.stream().toArray();
+    }
+
+    /**
+     * Transform the shapes in the given slots, saving each one's old
+     * geometry as ShapeTransform.apply() does.
+     * @param slots
+     * @param t
+     * @param before gets four ints per slot
+     * @return the area covered by the shapes before and after, or null
+     *      if there are no slots
+     */
+    BoundingBox transform(final int[] slots, final ShapeTransform t, final int[] before) {
+        BoundingBox area = ShapeTransform.inParallel(slots.length, new ShapeTransform.Range() {
+            @Override
+            public BoundingBox apply(int lo, int hi) {
+                BoundingBox area = null;
+                for (int j = lo; j < hi; j++) {
+                    int i = slots[j];
+                    area = ShapeTransform.union(area, left[i], right[i], top[i], bottom[i]);
+                    before[4 * j] = x[i];
+                    before[4 * j + 1] = y[i];
+                    before[4 * j + 2] = a[i];
+                    before[4 * j + 3] = b[i];
+                    transform(i, t);
+                    area = ShapeTransform.union(area, left[i], right[i], top[i], bottom[i]);
+                }
+                return area;
+            }
+        });
+        // the grid isn't safe to update from the pool
+        reindex(slots);
+        return area;
+    }
+
+    /**
+     * Put back geometry saved by transform().
+     * @param slots
+     * @param before
+     * @return the area covered by the shapes before and after, or null
+     *      if there are no slots
+     */
+    BoundingBox restore(final int[] slots, final int[] before) {
+        BoundingBox area = ShapeTransform.inParallel(slots.length, new ShapeTransform.Range() {
+            @Override
+            public BoundingBox apply(int lo, int hi) {
+                BoundingBox area = null;
+                for (int j = lo; j < hi; j++) {
+                    int i = slots[j];
+                    area = ShapeTransform.union(area, left[i], right[i], top[i], bottom[i]);
+                    x[i] = before[4 * j];
+                    y[i] = before[4 * j + 1];
+                    a[i] = before[4 * j + 2];
+                    b[i] = before[4 * j + 3];
+                    updateBounds(i);
+                    area = ShapeTransform.union(area, left[i], right[i], top[i], bottom[i]);
+                }
+                return area;
+            }
+        });
+        reindex(slots);
+        return area;
+    }
+
+    private void reindex(int[] slots) {
+        if (changingMany(slots.length)) {
+            rebuildGrid();
+            return;
+        }
+        for (int i : slots) {
+            reindex(i);
+        }
+    }
+
+    /**
+     * Write the shapes in slots from up to (not including) to as text.
+     * @param out
+     * @param from
+     * @param to
+     * @throws IOException
+     */
+    void write(SceneWriter out, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            out.writeShape(TYPES[type[i]], x[i], y[i], a[i], b[i], palette.get(colorIndex[i]), selected.get(i));
+        }
+    }
+
+    /**
+     * Build an ordinary shape object with the same state as the given slot.
+     * @param i
+     * @return
+     */
+    IShape toShape(int i) {
+        IShape s;
+        Color color = palette.get(colorIndex[i]);
+        switch (TYPES[type[i]]) {
+        case SQUARE:
+            s = new Square(color, x[i] + a[i]/2, y[i] + a[i]/2, a[i]);
+            break;
+        case RECTANGLE:
+            s = new Rectangle(new Point(x[i] + a[i]/2, y[i] + b[i]/2), a[i], b[i], color);
+            break;
+        case CIRCLE:
+            s = new Circle(color, new Point(x[i], y[i]), a[i]);
+            break;
+        default:
+            s = new Triangle(color, new Point(x[i], y[i]), a[i], b[i]);
+            break;
+        }
+        s.setSelected(selected.get(i));
+        return s;
+    }
+
+    private void drawSlot(Graphics g, int i) {
+        g.setColor(drawColor(i));
+        switch (TYPES[type[i]]) {
+        case SQUARE:
+        case RECTANGLE:
+            g.fillRect(x[i], y[i], a[i], b[i]);
+            break;
+        case CIRCLE:
+            g.fillOval(x[i] - a[i]/2, y[i] - a[i]/2, a[i], a[i]);
+            break;
+        case TRIANGLE:
+            int[] xPoints = {x[i], x[i] + a[i]/2, x[i] - a[i]/2};
+            int[] yPoints = {y[i] - b[i]/2, y[i] + b[i]/2, y[i] + b[i]/2};
+            g.fillPolygon(xPoints, yPoints, 3);
+            break;
+        }
+    }
+
+    /**
+     * Add slot i to a batch, the same shape drawSlot() would fill.
+     */
+    private void batchSlot(Graphics g, ShapeBatcher batcher, int i) {
+        ShapeBatcher.Batch batch = batcher.batchFor(drawColor(i), left[i], right[i], top[i], bottom[i]);
+        if (batch == null) {
+            drawSlot(g, i);
+            return;
+        }
+        switch (TYPES[type[i]]) {
+        case SQUARE:
+        case RECTANGLE:
+            batch.addRect(x[i], y[i], a[i], b[i]);
+            break;
+        case CIRCLE:
+            batch.addOval(x[i] - a[i]/2, y[i] - a[i]/2, a[i], a[i]);
+            break;
+        case TRIANGLE:
+            batch.addTriangle(x[i], y[i] - b[i]/2,
+                    x[i] + a[i]/2, y[i] + b[i]/2, x[i] - a[i]/2, y[i] + b[i]/2);
+            break;
+        }
+    }
+
+    /**
+     * The exact area drawSlot() fills.
+     */
+    Outline outline(int i) {
+        switch (TYPES[type[i]]) {
+        case CIRCLE:
+            return Outline.circle(x[i] - a[i]/2, y[i] - a[i]/2, a[i]);
+        case TRIANGLE:
+            return Outline.triangle(x[i], y[i] - b[i]/2,
+                    x[i] + a[i]/2, y[i] + b[i]/2, x[i] - a[i]/2, y[i] + b[i]/2);
+        default:
+            return Outline.rect(x[i], y[i], a[i], b[i]);
+        }
+    }
+
+    private Color drawColor(int i) {
+        Color color = palette.get(colorIndex[i]);
+        return selected.get(i) ? Util.darker(color) : color;
+    }
+
+    private void set(int i, ShapeType t, Point anchor, int sizeA, int sizeB) {
+        type[i] = (byte)t.ordinal();
+        x[i] = anchor.x;
+        y[i] = anchor.y;
+        a[i] = sizeA;
+        b[i] = sizeB;
+        updateBounds(i);
+    }
+
+    private void updateBounds(int i) {
+        switch (TYPES[type[i]]) {
+        case SQUARE:
+        case RECTANGLE:
+            left[i] = x[i];
+            right[i] = x[i] + a[i];
+            top[i] = y[i];
+            bottom[i] = y[i] + b[i];
+            break;
+        case CIRCLE:
+            left[i] = x[i] - a[i]/2;
+            right[i] = x[i] + a[i]/2;
+            top[i] = y[i] - a[i]/2;
+            bottom[i] = y[i] + a[i]/2;
+            break;
+        case TRIANGLE:
+            left[i] = x[i] - a[i]/2;
+            right[i] = x[i] + a[i]/2;
+            top[i] = y[i] - b[i]/2;
+            bottom[i] = y[i] + b[i]/2;
+            break;
+        }
+        // a shape shrunk past zero size still needs left <= right and top <= bottom
+        if (left[i] > right[i]) {
+            int tmp = left[i];
+            left[i] = right[i];
+            right[i] = tmp;
+        }
+        if (top[i] > bottom[i]) {
+            int tmp = top[i];
+            top[i] = bottom[i];
+            bottom[i] = tmp;
+        }
+    }
+
+    private void move(int i, int dx, int dy) {
+        x[i] += dx;
+        y[i] += dy;
+        left[i] += dx;
+        right[i] += dx;
+        top[i] += dy;
+        bottom[i] += dy;
+        reindex(i);
+    }
+
+    /**
+     * Transform slot i the same way the shape objects transform themselves.
+     */
+    private void transform(int i, ShapeTransform t) {
+        switch (TYPES[type[i]]) {
+        case SQUARE: {
+            double centerX = x[i] + a[i] / 2.0;
+            double centerY = y[i] + a[i] / 2.0;
+            a[i] = t.size(a[i]);
+            b[i] = a[i];
+            x[i] = t.x(centerX, centerY, a[i]);
+            y[i] = t.y(centerX, centerY, a[i]);
+            break;
+        }
+        case RECTANGLE: {
+            double centerX = x[i] + a[i] / 2.0;
+            double centerY = y[i] + b[i] / 2.0;
+            a[i] = t.width(a[i]);
+            b[i] = t.height(b[i]);
+            x[i] = t.x(centerX, centerY, a[i]);
+            y[i] = t.y(centerX, centerY, b[i]);
+            break;
+        }
+        case CIRCLE: {
+            int centerX = x[i];
+            x[i] = t.x(centerX, y[i], 0);
+            y[i] = t.y(centerX, y[i], 0);
+            a[i] = t.size(a[i]);
+            break;
+        }
+        case TRIANGLE: {
+            int centerX = x[i];
+            x[i] = t.x(centerX, y[i], 0);
+            y[i] = t.y(centerX, y[i], 0);
+            a[i] = t.width(a[i]);
+            b[i] = t.height(b[i]);
+            break;
+        }
+        }
+        updateBounds(i);
+    }
+
+    private void expand(int i, int factor) {
+        a[i] += factor;
+        if (TYPES[type[i]] != ShapeType.CIRCLE) {
+            b[i] += factor;
+        }
+        updateBounds(i);
+        reindex(i);
+    }
+
+    private void copySlot(int from, CompactShapeStore to, int i) {
+        to.type[i] = type[from];
+        to.x[i] = x[from];
+        to.y[i] = y[from];
+        to.a[i] = a[from];
+        to.b[i] = b[from];
+        to.left[i] = left[from];
+        to.right[i] = right[from];
+        to.top[i] = top[from];
+        to.bottom[i] = bottom[from];
+        to.colorIndex[i] = to == this ? colorIndex[from] : to.colorIndexOf(palette.get(colorIndex[from]));
+        to.selected.set(i, selected.get(from));
+    }
+
+    private byte colorIndexOf(Color color) {
+        int i = palette.indexOf(color);
+        if (i < 0) {
+            if (palette.size() > Byte.MAX_VALUE) {
+                throw new UnsupportedOperationException("Too many colors: "+color);
+            }
+            palette.add(color);
+            i = palette.size() - 1;
+        }
+        return (byte)i;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= type.length) {
+            return;
+        }
+        int n = Math.max(capacity, type.length * 2);
+        type = Arrays.copyOf(type, n);
+        x = Arrays.copyOf(x, n);
+        y = Arrays.copyOf(y, n);
+        a = Arrays.copyOf(a, n);
+        b = Arrays.copyOf(b, n);
+        left = Arrays.copyOf(left, n);
+        right = Arrays.copyOf(right, n);
+        top = Arrays.copyOf(top, n);
+        bottom = Arrays.copyOf(bottom, n);
+        colorIndex = Arrays.copyOf(colorIndex, n);
+    }
+
+    /**
+     * An IShape that reads and writes one slot of a CompactShapeStore.
+     * Two views are equal when they point at the same slot of the same store.
+     */
+    static class ShapeView implements IShape
+    {
+        private final CompactShapeStore store;
+        private final int slot;
+
+        ShapeView(CompactShapeStore store, int slot) {
+            this.store = store;
+            this.slot = slot;
+        }
+
+        CompactShapeStore store() {
+            return store;
+        }
+
+        int slot() {
+            return slot;
+        }
+
+        @Override
+        public void draw(Graphics g) {
+            store.drawSlot(g, slot);
+        }
+
+        @Override
+        public boolean intersects(IShape other) {
+            if (this.equals(other) || other == null) {
+                return false;
+            }
+            if (!other.getBoundingBox().overlaps(store.left[slot], store.right[slot],
+                    store.top[slot], store.bottom[slot])) {
+                return false;
+            }
+            Outline theirs = Outline.of(other);
+            return theirs == null || store.outline(slot).intersects(theirs);
+        }
+
+        @Override
+        public boolean contains(Point point) {
+            return store.boxContains(slot, point) && store.outline(slot).contains(point.x, point.y);
+        }
+
+        @Override
+        public Color getColor() {
+            return store.palette.get(store.colorIndex[slot]);
+        }
+
+        @Override
+        public void setColor(Color color) {
+            store.colorIndex[slot] = store.colorIndexOf(color);
+        }
+
+        @Override
+        public boolean isSelected() {
+            return store.selected.get(slot);
+        }
+
+        @Override
+        public void setSelected(boolean b) {
+            store.selected.set(slot, b);
+        }
+
+        /**
+         * Returns a copy of the anchor point; use setAnchorPoint() or
+         * move() to change it.
+         */
+        @Override
+        public Point getAnchorPoint() {
+            return new Point(store.x[slot], store.y[slot]);
+        }
+
+        @Override
+        public void setAnchorPoint(Point p) {
+            store.move(slot, p.x - store.x[slot], p.y - store.y[slot]);
+        }
+
+        @Override
+        public BoundingBox getBoundingBox() {
+            return new BoundingBox(store.left[slot], store.right[slot], store.top[slot], store.bottom[slot]);
+        }
+
+        @Override
+        public IShape copy() {
+            return store.toShape(slot);
+        }
+
+        @Override
+        public void move(int dx, int dy) {
+            store.move(slot, dx, dy);
+        }
+
+        @Override
+        public void scaleUp() {
+        }
+
+        @Override
+        public void scaleDown() {
+        }
+
+        @Override
+        public void expand(int factor) {
+            store.expand(slot, factor);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ShapeView)) {
+                return false;
+            }
+            ShapeView v = (ShapeView)o;
+            return v.store == store && v.slot == slot;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(store) * 31 + slot;
+        }
+
+        @Override
+        public String toString() {
+            return store.toShape(slot).toString();
+        }
+    }
+}
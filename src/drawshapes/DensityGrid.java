@@ -0,0 +1,138 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Level of detail for a zoomed out view: shapes smaller than a pixel
+ * are not drawn one by one but recorded as a single colored cell of a
+ * grid lined up with the pixels, and the grid is filled at the end.
+ *
+ * A cell takes the color of the last shape recorded in it, so however
+ * many tiny shapes land on a pixel it is only filled once, and runs of
+ * cells of the same color along a row are filled as one fillRect() in
+ * device pixels, with one setColor() per color. The cells go on top of
+ * the full-size shapes, which is the one place the drawing order isn't
+ * kept, but at this zoom the difference is at most a pixel per tiny
+ * shape.
+ */
+class DensityGrid
+{
+    // cells only hold this many colors; shapes of any other color are drawn whole
+    private static final int MAX_COLORS = 255;
+
+    // size of a cell in scene units, and where cell (0, 0) starts
+    private final double cell;
+    private final double originX;
+    private final double originY;
+    // the device pixel cell (0, 0) covers
+    private final int pixelX;
+    private final int pixelY;
+    private final int cols;
+    private final int rows;
+    // index into colors plus one for each cell, zero when empty
+    private final byte[] cells;
+    private final List<Color> colors = new ArrayList<Color>();
+
+    private DensityGrid(double cell, int pixelX, int pixelY, double originX, double originY, int cols, int rows) {
+        this.cell = cell;
+        this.pixelX = pixelX;
+        this.pixelY = pixelY;
+        this.originX = originX;
+        this.originY = originY;
+        this.cols = cols;
+        this.rows = rows;
+        this.cells = new byte[cols * rows];
+    }
+
+    /**
+     * Return a grid for drawing with the given Graphics, or null if it
+     * doesn't shrink the scene so a scene unit is under a pixel, or has
+     * no clip, rotation or uneven scale.
+     * @param g
+     * @return
+     */
+    static DensityGrid forGraphics(Graphics g) {
+        if (!(g instanceof Graphics2D)) {
+            return null;
+        }
+        AffineTransform t = ((Graphics2D)g).getTransform();
+        java.awt.Rectangle clip = g.getClipBounds();
+        double scale = t.getScaleX();
+        if (clip == null || t.getShearX() != 0 || t.getShearY() != 0
+                || scale != t.getScaleY() || scale <= 0 || scale >= 1) {
+            return null;
+        }
+        // line the cells up with the device pixels
+        int pixelX = (int)Math.floor(clip.x * scale + t.getTranslateX());
+        int pixelY = (int)Math.floor(clip.y * scale + t.getTranslateY());
+        double originX = (pixelX - t.getTranslateX()) / scale;
+        double originY = (pixelY - t.getTranslateY()) / scale;
+        double cell = 1 / scale;
+        int cols = (int)Math.ceil((clip.x + clip.width - originX) / cell) + 1;
+        int rows = (int)Math.ceil((clip.y + clip.height - originY) / cell) + 1;
+        return new DensityGrid(cell, pixelX, pixelY, originX, originY, cols, rows);
+    }
+
+    /**
+     * Record a shape in the cell under its center if it is smaller than
+     * a cell. Returns false if the shape has to be drawn whole.
+     */
+    boolean add(int left, int right, int top, int bottom, Color color) {
+        if (right - left >= cell || bottom - top >= cell) {
+            return false;
+        }
+        int col = (int)Math.floor(((left + right) / 2.0 - originX) / cell);
+        int row = (int)Math.floor(((top + bottom) / 2.0 - originY) / cell);
+        if (col < 0 || col >= cols || row < 0 || row >= rows) {
+            // off the edge of the clip, so it wouldn't show anyway
+            return true;
+        }
+        int c = colors.indexOf(color);
+        if (c < 0) {
+            if (colors.size() == MAX_COLORS) {
+                return false;
+            }
+            c = colors.size();
+            colors.add(color);
+        }
+        cells[row * cols + col] = (byte)(c + 1);
+        return true;
+    }
+
+    /**
+     * Fill the recorded cells.
+     * @param g the Graphics that was given to forGraphics()
+     */
+    void draw(Graphics g) {
+        if (colors.isEmpty()) {
+            return;
+        }
+        // a cell is exactly a device pixel, so fill whole pixels untransformed
+        Graphics2D device = (Graphics2D)g.create();
+        device.setTransform(new AffineTransform());
+        for (int c = 1; c <= colors.size(); c++) {
+            device.setColor(colors.get(c - 1));
+            for (int row = 0; row < rows; row++) {
+                int i = row * cols;
+                int end = i + cols;
+                while (i < end) {
+                    if ((cells[i] & 0xff) != c) {
+                        i++;
+                        continue;
+                    }
+                    int start = i;
+                    while (i < end && (cells[i] & 0xff) == c) {
+                        i++;
+                    }
+                    device.fillRect(pixelX + start - row * cols, pixelY + row, i - start, 1);
+                }
+            }
+        }
+        device.dispose();
+    }
+}
@@ -17,13 +17,18 @@ import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntConsumer;
 
+import javax.management.JMException;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
-import java.io.PrintWriter;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import java.util.Stack;
 
 @SuppressWarnings("serial")
@@ -42,16 +47,54 @@ public class DrawShapes extends JFrame
     private Color color = Color.RED;
     private Point startDrag;
     private int distance = 30;
-    private Stack<Scene> undoStack = new Stack<Scene>();
+    private Stack<SceneEdit> undoStack = new Stack<SceneEdit>();
+    // estimated memory held by the edits in undoStack
+    private long undoBytes;
+    private SceneMetrics metrics;
+    // debug log of UI events, switched on and off with the 'l' key
+    private EventLog log = new EventLog(4096, System.out);
+    // drags and keyboard moves wait for this, so there is at most one per frame
+    private Timer frameTimer;
+    private Point pendingDrag;
+    // where the middle button was last seen while it drags the view around
+    private Point panFrom;
+    private int pendingDx;
+    private int pendingDy;
+    
+    static final int FRAME_MILLIS = 16;
 
     public DrawShapes(int width, int height)
     {
         setTitle("Draw Shapes!");
-        scene=new Scene();
-        undoStack.add(scene.copy());
+        // -Ddrawshapes.log=true starts with the event log on
+        log.setEnabled(Boolean.getBoolean("drawshapes.log"));
+        frameTimer = new Timer(FRAME_MILLIS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                flushInput();
+            }
+        });
+        frameTimer.setRepeats(false);
+        // -Ddrawshapes.compact=true stores shapes in parallel arrays
+        scene=new Scene(Boolean.getBoolean("drawshapes.compact"));
+        // start tracking changes, so each save only copies what changed since
+        scene.publish();
         
         // create our canvas, add to this frame's content pane
         shapePanel = new DrawShapesPanel(width,height,scene);
+        // -Ddrawshapes.tileCacheMB=0 draws every shape on every repaint instead
+        shapePanel.setTileCacheBudget(Long.getLong("drawshapes.tileCacheMB", 64) * 1024 * 1024);
+        // -Ddrawshapes.renderThreads=n draws on n threads when the tile cache is off
+        shapePanel.setRenderThreads(Integer.getInteger("drawshapes.renderThreads", 0));
+        // metrics are published over JMX; the 'h' key or -Ddrawshapes.hud=true shows them
+        metrics = new SceneMetrics(scene);
+        try {
+            metrics.register();
+        } catch (JMException e) {
+            System.err.println("could not publish metrics: " + e);
+        }
+        shapePanel.setMetrics(metrics);
+        shapePanel.setHudVisible(Boolean.getBoolean("drawshapes.hud"));
         this.getContentPane().add(shapePanel, BorderLayout.CENTER);
         this.setResizable(false);
         this.pack();
@@ -78,64 +121,63 @@ public class DrawShapes extends JFrame
             
             public void mouseClicked(MouseEvent e)
             {
-                undoStack.add(scene.copy());
-                System.out.printf("Mouse cliked at (%d, %d)\n", e.getX(), e.getY());
+                log.log("Mouse clicked at (%d, %d)", e.getX(), e.getY());
+                flushInput();
+                // where the click is in the scene, whatever the zoom
+                Point clicked = shapePanel.toScene(e.getPoint());
                 if(!e.isShiftDown()){
                     if (e.getButton()==MouseEvent.BUTTON1) { 
                         if (shapeType == ShapeType.SQUARE) {
-                            scene.addShape(new Square(color, 
-                                    e.getX(), 
-                                    e.getY(),
-                                    100));
+                            recordEdit(scene.addShape(new Square(color, 
+                                    clicked.x, 
+                                    clicked.y,
+                                    100)));
                         } else if (shapeType == ShapeType.CIRCLE){
-                            scene.addShape(new Circle(color,
-                                    e.getPoint(),
-                                    100));
+                            recordEdit(scene.addShape(new Circle(color,
+                                    clicked,
+                                    100)));
                         } else if (shapeType == ShapeType.RECTANGLE) {
-                            scene.addShape(new Rectangle(
-                                    e.getPoint(),
+                            recordEdit(scene.addShape(new Rectangle(
+                                    clicked,
                                     100, 
                                     200,
-                                    color));
+                                    color)));
                         } else if(shapeType==ShapeType.TRIANGLE){
-                            scene.addShape(new Triangle(
+                            recordEdit(scene.addShape(new Triangle(
                                     color,
-                                    e.getPoint(),
+                                    clicked,
                                     100,
-                                    100));
+                                    100)));
                         }
 
                     } else if (e.getButton()==MouseEvent.BUTTON2) {
                         // apparently this is middle click
                     } else if (e.getButton()==MouseEvent.BUTTON3){
                         // right right-click
-                        Point p = e.getPoint();
-                        System.out.printf("Right click is (%d, %d)\n", p.x, p.y);
-                        List<IShape> selected = scene.select(p);
-                        if (selected.size() > 0){
-                            for (IShape s : selected){
-                                s.setSelected(true);
-                            }
+                        Point p = clicked;
+                        log.log("Right click is (%d, %d)", p.x, p.y);
+                        // only the shape you can see there, not the ones under it
+                        IShape picked = scene.pickTopmost(p);
+                        if (picked != null){
+                            scene.setSelected(picked, true);
                         } else {
-                            for (IShape s : scene){
-                                s.setSelected(false);
-                            }
+                            scene.clearSelection();
                         }
-                        System.out.printf("Select %d shapes\n", selected.size());
+                        log.log("Selected %s", picked);
                     }
             }
                 if (e.getButton()==MouseEvent.BUTTON1) {
                         if(e.isShiftDown()){
-                            System.out.println("Shift key is down");
-                            Point p = e.getPoint();
-                            List<IShape> selected = scene.select(p);
-                            for(IShape s: selected){
-                                s.setSelected(true);
+                            log.log("Shift key is down");
+                            Point p = clicked;
+                            IShape picked = scene.pickTopmost(p);
+                            if (picked != null) {
+                                scene.setSelected(picked, true);
                             }
                         }
                         
                     }
-                
+                shapePanel.repaintDamage();
             }
             
             /* (non-Javadoc)
@@ -143,8 +185,14 @@ public class DrawShapes extends JFrame
              */
             public void mousePressed(MouseEvent e)
             {
-                System.out.printf("mouse pressed at (%d, %d)\n", e.getX(), e.getY());
-                scene.startDrag(e.getPoint());
+                log.log("mouse pressed at (%d, %d)", e.getX(), e.getY());
+                flushInput();
+                if (e.getButton() == MouseEvent.BUTTON2) {
+                    // the middle button drags the view instead of selecting
+                    panFrom = e.getPoint();
+                    return;
+                }
+                scene.startDrag(shapePanel.toScene(e.getPoint()));
                 
             }
 
@@ -153,30 +201,101 @@ public class DrawShapes extends JFrame
              */
             public void mouseReleased(MouseEvent e)
             {
-                System.out.printf("mouse released at (%d, %d)\n", e.getX(), e.getY());
+                log.log("mouse released at (%d, %d)", e.getX(), e.getY());
+                if (e.getButton() == MouseEvent.BUTTON2) {
+                    panFrom = null;
+                    return;
+                }
+                // finish the drag where the mouse was let go
+                flushInput();
                 scene.stopDrag();
-                repaint();
+                shapePanel.repaintDamage();
             }
             
             @Override
             public void mouseDragged(MouseEvent e) {
-                System.out.printf("mouse drag! (%d, %d)\n", e.getX(), e.getY());
-                scene.updateSelectRect(e.getPoint());
-                repaint();
+                log.log("mouse drag! (%d, %d)", e.getX(), e.getY());
+                if (panFrom != null) {
+                    shapePanel.pan(e.getX() - panFrom.x, e.getY() - panFrom.y);
+                    panFrom = e.getPoint();
+                    return;
+                }
+                // map it now, in case the view changes before the next frame
+                pendingDrag = shapePanel.toScene(e.getPoint());
+                scheduleInput();
             }
 
-            //shrinking and growing
+            //zooming in and out around the mouse; the arrow keys resize shapes
             @Override
             public void mouseWheelMoved(MouseWheelEvent e) {
-                System.out.printf("mouse scroll!");
-                int factor = e.getWheelRotation()+100;
-                scene.resize(factor);
+                log.log("mouse scroll!");
+                flushInput();
+                shapePanel.zoomAt(e.getPoint(), -e.getWheelRotation());
             }
             
         };
         shapePanel.addMouseMotionListener(a);
         shapePanel.addMouseListener(a);
-        undoStack.add(scene);
+        shapePanel.addMouseWheelListener(a);
+    }
+    
+    private Point viewCenter() {
+        return new Point(shapePanel.getWidth() / 2, shapePanel.getHeight() / 2);
+    }
+    
+    /**
+     * Apply the drag and keyboard moves on the next frame, unless that's
+     * already going to happen.
+     */
+    private void scheduleInput() {
+        if (!frameTimer.isRunning()) {
+            frameTimer.start();
+        }
+    }
+    
+    /**
+     * Apply the drag and keyboard moves that came in since the last frame:
+     * the selection rectangle goes to the last drag position, and all the
+     * moves become one move. Called by the frame timer, and before any
+     * other input so that things happen in the order they were asked for.
+     */
+    private void flushInput() {
+        frameTimer.stop();
+        if (pendingDrag != null) {
+            scene.updateSelectRect(pendingDrag);
+            pendingDrag = null;
+        }
+        if (pendingDx != 0 || pendingDy != 0) {
+            recordEdit(scene.moveSelected(pendingDx, pendingDy));
+            pendingDx = 0;
+            pendingDy = 0;
+        }
+        shapePanel.repaintDamage();
+    }
+    
+    /**
+     * Remember an edit so the 'z' key can undo it.
+     * @param edit the edit, or null if nothing changed
+     */
+    private void recordEdit(SceneEdit edit) {
+        if (edit != null) {
+            undoStack.push(edit);
+            undoBytes += edit.estimatedBytes();
+            metrics.setUndoHistory(undoStack.size(), undoBytes);
+        }
+    }
+    
+    private void undo() {
+        SceneEdit edit = undoStack.pop();
+        edit.undo(scene);
+        undoBytes -= edit.estimatedBytes();
+        metrics.setUndoHistory(undoStack.size(), undoBytes);
+    }
+    
+    private void clearUndo() {
+        undoStack.clear();
+        undoBytes = 0;
+        metrics.setUndoHistory(0, 0);
     }
     
     /**
@@ -197,7 +316,8 @@ public class DrawShapes extends JFrame
             @Override
             public void actionPerformed(ActionEvent e) {
                 // TODO Auto-generated method stub
-                System.out.println(e.getActionCommand());
+                log.log(e.getActionCommand());
+                flushInput();
                 JFileChooser jfc = new JFileChooser(".");
 
                 int returnValue = jfc.showOpenDialog(null);
@@ -206,11 +326,16 @@ public class DrawShapes extends JFrame
                     File selectedFile = jfc.getSelectedFile();
                     try{
                         scene.loadFromFile(selectedFile);
-                        repaint();
+                        // copy the new shapes out now, while loading is O(n)
+                        // anyway, rather than in the first save
+                        scene.publish();
+                        // edits refer to shapes that are no longer in the scene
+                        clearUndo();
+                        shapePanel.repaintDamage();
                     }catch(IOException ex){
-                        System.out.println("ex");
+                        System.err.println("load failed: " + ex.getMessage());
                     }
-                    System.out.println("load from " +selectedFile.getAbsolutePath());
+                    log.log("load from %s", selectedFile.getAbsolutePath());
                     //TODO: load scene from file
                     
                 }
@@ -223,7 +348,8 @@ public class DrawShapes extends JFrame
             @Override
             public void actionPerformed(ActionEvent e) {
                 // TODO Auto-generated method stub
-                System.out.println(e.getActionCommand());
+                log.log(e.getActionCommand());
+                flushInput();
                 JFileChooser jfc = new JFileChooser(".");
 
                 // int returnValue = jfc.showOpenDialog(null);
@@ -231,14 +357,8 @@ public class DrawShapes extends JFrame
 
                 if (returnValue == JFileChooser.APPROVE_OPTION) {
                     File selectedFile = jfc.getSelectedFile();
-                    System.out.println("save to " +selectedFile.getAbsolutePath());
-                    //TODO: save scene to file
-                    String text = scene.toString();
-                    try(PrintWriter out = new PrintWriter(selectedFile)){
-                        out.println(text);
-                    }catch(IOException ex) {
-                        //TODO:
-                    }
+                    log.log("save to %s", selectedFile.getAbsolutePath());
+                    saveInBackground(selectedFile);
                     
                 }
             }
@@ -250,7 +370,7 @@ public class DrawShapes extends JFrame
         itemExit.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
                 String text=e.getActionCommand();
-                System.out.println(text);
+                log.log(text);
                 System.exit(0);
             }
         });
@@ -265,13 +385,12 @@ public class DrawShapes extends JFrame
         redColorItem.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
                 String text=e.getActionCommand();
-                System.out.println(text);
+                log.log(text);
                 // change the color instance variable to red
                 color = Color.RED;
-                for(IShape s : scene.getSelectedShapes()){
-                    s.setColor(Color.RED);
-                }
-                repaint();
+                flushInput();
+                recordEdit(scene.changeColor(Color.RED));
+                shapePanel.repaintDamage();
             }
         });
         
@@ -282,13 +401,12 @@ public class DrawShapes extends JFrame
         blueColorItem.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
                 String text=e.getActionCommand();
-                System.out.println(text);
+                log.log(text);
                 // change the color instance variable to blue
                 color = Color.BLUE;
-                for(IShape s : scene.getSelectedShapes()){
-                    s.setColor(Color.BLUE);
-                }
-                repaint();
+                flushInput();
+                recordEdit(scene.changeColor(Color.BLUE));
+                shapePanel.repaintDamage();
             }
         });
 
@@ -297,13 +415,12 @@ public class DrawShapes extends JFrame
         greenColorItem.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
                 String text=e.getActionCommand();
-                System.out.println(text);
+                log.log(text);
                 // change the color instance variable to blue
                 color = Color.GREEN;
-                for(IShape s : scene.getSelectedShapes()){
-                    s.setColor(Color.GREEN);
-                }
-                repaint();
+                flushInput();
+                recordEdit(scene.changeColor(Color.GREEN));
+                shapePanel.repaintDamage();
             }
         });
         
@@ -317,7 +434,7 @@ public class DrawShapes extends JFrame
         squareItem.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                System.out.println("Square");
+                log.log("Square");
                 shapeType = ShapeType.SQUARE;
             }
         });
@@ -328,7 +445,7 @@ public class DrawShapes extends JFrame
         circleItem.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                System.out.println("Circle");
+                log.log("Circle");
                 shapeType = ShapeType.CIRCLE;
             }
         });
@@ -339,7 +456,7 @@ public class DrawShapes extends JFrame
         rectangleItem.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                System.out.println("Rectangle");
+                log.log("Rectangle");
                 shapeType = ShapeType.RECTANGLE;
             }
         });
@@ -350,7 +467,7 @@ public class DrawShapes extends JFrame
         triangleItem.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                System.out.println("Triangle");
+                log.log("Triangle");
                 shapeType = ShapeType.TRIANGLE;
             }
         });
@@ -366,7 +483,7 @@ public class DrawShapes extends JFrame
         drawItem.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
                 String text=e.getActionCommand();
-                System.out.println(text);
+                log.log(text);
             }
         });
         
@@ -376,7 +493,7 @@ public class DrawShapes extends JFrame
         selectItem.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
                 String text=e.getActionCommand();
-                System.out.println(text);
+                log.log(text);
             }
         });
         
@@ -385,6 +502,54 @@ public class DrawShapes extends JFrame
         this.setJMenuBar(menuBar);
     }
     
+    /**
+     * Save the scene to a file on a background thread, showing progress.
+     * 
+     * A snapshot of the scene is published first, which only copies the
+     * segments changed since the last one, so the user can keep editing
+     * while the file is written. Removing or putting back shapes
+     * copies the segments from the first of them to the end. The file
+     * is written straight from the snapshot's segments. A .dsb name
+     * saves in the binary format, anything else as text.
+     * 
+     * @param file
+     */
+    private void saveInBackground(final File file) {
+        final SceneSnapshot snapshot = scene.publish();
+        final ProgressMonitor monitor = new ProgressMonitor(this,
+                "Saving " + file.getName(), null, 0, Math.max(1, snapshot.size()));
+        new SwingWorker<Void, Integer>() {
+            @Override
+            protected Void doInBackground() throws IOException {
+                long start = System.nanoTime();
+                SceneWriter.save(snapshot, file, new IntConsumer() {
+                    @Override
+                    public void accept(int written) {
+                        publish(written);
+                    }
+                });
+                metrics.saveTime.recordSince(start);
+                return null;
+            }
+
+            @Override
+            protected void process(List<Integer> written) {
+                monitor.setProgress(written.get(written.size() - 1));
+            }
+
+            @Override
+            protected void done() {
+                monitor.close();
+                try {
+                    get();
+                    log.log("saved %d shapes", snapshot.size());
+                } catch (InterruptedException | ExecutionException ex) {
+                    System.err.println("save failed: " + ex.getCause());
+                }
+            }
+        }.execute();
+    }
+    
     /**
      * Initialize the keyboard listener.
      */
@@ -394,18 +559,18 @@ public class DrawShapes extends JFrame
         //we also add to the undo stack so we can undo our size changes
         shapePanel.addKeyListener(new KeyListener() {
             public void keyPressed(KeyEvent e) {
-                System.out.println("key typed: " + e.getKeyChar());
+                log.log("key pressed: %d", e.getKeyCode());
                 int key = e.getKeyCode();
                 if (key == KeyEvent.VK_UP) {
-                    System.out.println("Up arrow pressed");
-                    scene.resize(5);
-                    repaint();
-                    undoStack.add(scene.copy());
+                    log.log("Up arrow pressed");
+                    flushInput();
+                    recordEdit(scene.resize(5));
+                    shapePanel.repaintDamage();
                 } else if (key == KeyEvent.VK_DOWN) {
-                    System.out.println("Down arrow pressed");
-                    scene.resize(-5);
-                    repaint();
-                    undoStack.add(scene.copy());
+                    log.log("Down arrow pressed");
+                    flushInput();
+                    recordEdit(scene.resize(-5));
+                    shapePanel.repaintDamage();
                 }
             }
             public void keyReleased(KeyEvent e) {
@@ -414,30 +579,55 @@ public class DrawShapes extends JFrame
             public void keyTyped(KeyEvent e) {
                 // TODO: implement this method if you need it
                 char k = e.getKeyChar();
+                // moves are added up and applied once per frame
                 if(k=='w'){
-                    scene.moveSelected(0, -distance);
+                    pendingDy -= distance;
+                    scheduleInput();
                 }
                 if(k=='s'){
-                    scene.moveSelected(0, distance);
+                    pendingDy += distance;
+                    scheduleInput();
                 }
                 if(k=='a'){
-                    scene.moveSelected(-distance, 0);
+                    pendingDx -= distance;
+                    scheduleInput();
                 }
                 if(k=='d'){
-                    scene.moveSelected(distance, 0);
+                    pendingDx += distance;
+                    scheduleInput();
                 }
-                repaint();
                 if(k=='z'){
+                    flushInput();
                     if(!undoStack.isEmpty()){
-                        
-                        scene.update(undoStack.peek());
-                        repaint();
-                        undoStack.pop();//removes current scene
+                        undo();
+                        shapePanel.repaintDamage();
                     }else{
-                        System.out.println("undo stack empty");
+                        log.log("undo stack empty");
     
                     }
                 }
+                if(k=='+' || k=='='){
+                    shapePanel.zoomAt(viewCenter(), 1);
+                }
+                if(k=='-'){
+                    shapePanel.zoomAt(viewCenter(), -1);
+                }
+                if(k=='0'){
+                    shapePanel.resetView();
+                }
+                if(k=='h'){
+                    shapePanel.setHudVisible(!shapePanel.isHudVisible());
+                }
+                if(k=='l'){
+                    // logged while the log is on, so the last event before it goes off
+                    if (log.isEnabled()) {
+                        log.log("event log off");
+                        log.setEnabled(false);
+                    } else {
+                        log.setEnabled(true);
+                        log.log("event log on");
+                    }
+                }
                              
             }
            
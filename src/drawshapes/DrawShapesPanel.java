@@ -2,8 +2,16 @@ package drawshapes;
 
 
 
+import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.List;
 
 import javax.swing.JPanel;
 
@@ -17,9 +25,32 @@ import javax.swing.JPanel;
 @SuppressWarnings("serial")
 public class DrawShapesPanel extends JPanel
 {
+    private static final Font HUD_FONT = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+    private static final Color HUD_BACKGROUND = new Color(0, 0, 0, 160);
+    private static final int HUD_MARGIN = 6;
+    // the zoom doubles every this many steps
+    static final int ZOOM_STEPS_PER_DOUBLING = 4;
+    static final int MIN_ZOOM_STEP = -6 * ZOOM_STEPS_PER_DOUBLING;
+    static final int MAX_ZOOM_STEP = 4 * ZOOM_STEPS_PER_DOUBLING;
+    
     private int width;
     private int height;
     private Scene scene;
+    // null when unselected shapes are drawn directly every time
+    private TileCache tileCache;
+    // when not null, repaints are drawn on several threads into backBuffer
+    private ParallelRenderer renderer;
+    private BufferedImage backBuffer;
+    // when not null, frame times are recorded here
+    private SceneMetrics metrics;
+    private boolean hudVisible;
+    // where the HUD was last drawn, so it can be redrawn with every repaint
+    private java.awt.Rectangle hudBounds;
+    // the view: scene point p is drawn at p * zoom + (panX, panY)
+    private int zoomStep;
+    private double zoom = 1;
+    private double panX;
+    private double panY;
     
     public DrawShapesPanel(int width, int height, Scene scene)
     {
@@ -28,13 +59,282 @@ public class DrawShapesPanel extends JPanel
         this.scene=scene;
     }
     
+    /**
+     * Cache the unselected shapes in off-screen tiles that use at most
+     * the given amount of memory. A budget of zero turns the cache off.
+     * @param budgetBytes
+     */
+    public void setTileCacheBudget(long budgetBytes) {
+        if (budgetBytes > 0) {
+            tileCache = new TileCache(TileCache.DEFAULT_TILE_SIZE, budgetBytes);
+        } else {
+            tileCache = null;
+        }
+        repaint();
+    }
+    
+    /**
+     * Draw repaints on the given number of threads into an off-screen
+     * buffer, which is then copied to the screen. Zero threads draws on
+     * the event thread instead. The tile cache, if there is one, is
+     * used in preference to this.
+     * @param threads
+     */
+    public void setRenderThreads(int threads) {
+        if (renderer != null) {
+            renderer.shutdown();
+            renderer = null;
+        }
+        if (threads > 0) {
+            renderer = new ParallelRenderer(threads, ParallelRenderer.DEFAULT_TILE_SIZE);
+        }
+        backBuffer = null;
+        repaint();
+    }
+    
+    /**
+     * Record how long each frame takes into the given metrics, and show
+     * them in the HUD. Null turns this off.
+     * @param metrics
+     */
+    public void setMetrics(SceneMetrics metrics) {
+        this.metrics = metrics;
+        scene.setMetrics(metrics);
+    }
+    
+    /**
+     * Show or hide the metrics overlay in the corner of the panel.
+     * It only shows if metrics have been set.
+     * @param visible
+     */
+    public void setHudVisible(boolean visible) {
+        hudVisible = visible;
+        repaint();
+    }
+    
+    public boolean isHudVisible() {
+        return hudVisible;
+    }
+    
+    /**
+     * Return the transform from scene to panel coordinates.
+     * @return
+     */
+    public AffineTransform getViewTransform() {
+        return new AffineTransform(zoom, 0, 0, zoom, panX, panY);
+    }
+    
+    /**
+     * Is the scene drawn at its own size and position, so the tile
+     * cache and the render threads can be used?
+     */
+    private boolean isIdentityView() {
+        return zoomStep == 0 && panX == 0 && panY == 0;
+    }
+    
+    /**
+     * Return the scene point under the given point of the panel.
+     * @param p
+     * @return
+     */
+    public Point toScene(Point p) {
+        return new Point((int)Math.floor((p.x - panX) / zoom), (int)Math.floor((p.y - panY) / zoom));
+    }
+    
+    /**
+     * Zoom in by the given number of steps, or out if it's negative,
+     * keeping the scene point under the given panel point where it is.
+     * @param center
+     * @param steps
+     */
+    public void zoomAt(Point center, int steps) {
+        int step = Math.max(MIN_ZOOM_STEP, Math.min(MAX_ZOOM_STEP, zoomStep + steps));
+        if (step == zoomStep) {
+            return;
+        }
+        double sceneX = (center.x - panX) / zoom;
+        double sceneY = (center.y - panY) / zoom;
+        zoomStep = step;
+        zoom = Math.pow(2, (double)step / ZOOM_STEPS_PER_DOUBLING);
+        panX = center.x - sceneX * zoom;
+        panY = center.y - sceneY * zoom;
+        if (step == 0) {
+            // back at full size, so line pixels up with the scene again
+            panX = Math.rint(panX);
+            panY = Math.rint(panY);
+        }
+        repaint();
+    }
+    
+    /**
+     * Move the view by the given number of pixels.
+     * @param dx
+     * @param dy
+     */
+    public void pan(int dx, int dy) {
+        panX += dx;
+        panY += dy;
+        repaint();
+    }
+    
+    /**
+     * Go back to drawing the scene at its own size and position.
+     */
+    public void resetView() {
+        zoomStep = 0;
+        zoom = 1;
+        panX = 0;
+        panY = 0;
+        repaint();
+    }
+    
+    public double getZoom() {
+        return zoom;
+    }
+    
     /* (non-Javadoc)
      * @see javax.swing.JComponent#paint(java.awt.Graphics)
      */
     public void paint(Graphics g) {
+        long start = metrics != null ? System.nanoTime() : 0;
+        scene.startFrame();
+        paintScene(g);
+        if (metrics != null) {
+            metrics.endFrame(System.nanoTime() - start);
+            if (hudVisible) {
+                paintHud(g);
+            }
+        }
+    }
+    
+    private void paintScene(Graphics g) {
+        // pick up changes nobody has asked to repaint yet, so no stale tile is drawn
+        repaintDamage();
+        if (!isIdentityView()) {
+            paintView(g);
+            return;
+        }
+        if (tileCache != null) {
+            // the tiles are opaque, so they also clear the background
+            tileCache.paint(g, scene, getBackground(), getWidth(), getHeight());
+            scene.drawSelected(g);
+            return;
+        }
+        // only the clip area is repainted, so clear just that
+        java.awt.Rectangle clip = g.getClipBounds();
+        if (renderer != null) {
+            if (backBuffer == null || backBuffer.getWidth() != getWidth() || backBuffer.getHeight() != getHeight()) {
+                backBuffer = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_RGB);
+            }
+            if (clip == null) {
+                clip = new java.awt.Rectangle(0, 0, getWidth(), getHeight());
+            }
+            try {
+                renderer.render(scene, backBuffer, getBackground(), clip);
+                g.drawImage(backBuffer, 0, 0, null);
+                return;
+            } catch (InterruptedException e) {
+                // leave the flag for whoever interrupted us, and draw
+                // this frame on the event thread instead
+                Thread.currentThread().interrupt();
+            }
+        }
+        g.setColor(getBackground());
+        if (clip != null) {
+            g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        } else {
+            g.fillRect(0, 0, getWidth(), getHeight());
+        }
         scene.draw(g);
     }
     
+    /**
+     * Draw the scene through the view transform. The clip comes out in
+     * scene coordinates, so the scene still only draws what is visible,
+     * and when zoomed out it draws shapes under a pixel as single pixels.
+     * The tiles are only good at full size, so they aren't used.
+     */
+    private void paintView(Graphics g) {
+        java.awt.Rectangle clip = g.getClipBounds();
+        g.setColor(getBackground());
+        if (clip != null) {
+            g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        } else {
+            g.fillRect(0, 0, getWidth(), getHeight());
+        }
+        Graphics2D g2 = (Graphics2D)g.create();
+        g2.transform(getViewTransform());
+        scene.draw(g2);
+        g2.dispose();
+    }
+    
+    /**
+     * Repaint just the part of the panel that the scene has changed
+     * since the last repaint.
+     */
+    public void repaintDamage() {
+        java.awt.Rectangle r = scene.takeDamage();
+        if (r != null) {
+            if (tileCache != null) {
+                // the tiles hold the scene at full size, whatever the view
+                tileCache.invalidate(r);
+            }
+            if (!isIdentityView()) {
+                // only the visible part, or scaling damageAll()'s huge
+                // rectangle would overflow int and repaint nothing
+                r = r.intersection(getVisibleSceneBounds());
+                if (r.isEmpty()) {
+                    r = new java.awt.Rectangle();
+                } else {
+                    r = getViewTransform().createTransformedShape(r).getBounds();
+                    // shapes can round a pixel past their scaled bounds
+                    r.grow(1, 1);
+                }
+            }
+            if (hudVisible && hudBounds != null) {
+                // keep the HUD whole and up to date; it's drawn over the shapes, not cached
+                r.add(hudBounds);
+            }
+            repaint(r.x, r.y, r.width, r.height);
+        }
+    }
+    
+    /**
+     * The part of the scene that the panel shows under the current view,
+     * with a pixel to spare on every side.
+     */
+    private java.awt.Rectangle getVisibleSceneBounds() {
+        int left = (int)Math.floor(-panX / zoom) - 1;
+        int top = (int)Math.floor(-panY / zoom) - 1;
+        int right = (int)Math.ceil((getWidth() - panX) / zoom) + 1;
+        int bottom = (int)Math.ceil((getHeight() - panY) / zoom) + 1;
+        return new java.awt.Rectangle(left, top, right - left, bottom - top);
+    }
+    
+    /**
+     * Draw the metrics as lines of white text on a dark box in the
+     * top left corner.
+     */
+    private void paintHud(Graphics g) {
+        List<String> lines = metrics.summary();
+        g.setFont(HUD_FONT);
+        FontMetrics fm = g.getFontMetrics();
+        int width = 0;
+        for (String line : lines) {
+            width = Math.max(width, fm.stringWidth(line));
+        }
+        hudBounds = new java.awt.Rectangle(HUD_MARGIN, HUD_MARGIN,
+                width + 2 * HUD_MARGIN, lines.size() * fm.getHeight() + 2 * HUD_MARGIN);
+        g.setColor(HUD_BACKGROUND);
+        g.fillRect(hudBounds.x, hudBounds.y, hudBounds.width, hudBounds.height);
+        g.setColor(Color.WHITE);
+        int y = hudBounds.y + HUD_MARGIN + fm.getAscent();
+        for (String line : lines) {
+            g.drawString(line, hudBounds.x + HUD_MARGIN, y);
+            y += fm.getHeight();
+        }
+    }
+    
     /* (non-Javadoc)
      * @see javax.swing.JComponent#getMinimumSize()
      */
@@ -0,0 +1,185 @@
+package drawshapes;
+
+import java.io.PrintStream;
+import java.util.IllegalFormatException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A debug log for UI events that stays out of the way of the event thread.
+ *
+ * Events go into a fixed-size ring buffer as a format string and up to
+ * two int arguments or one Object argument; the format itself is not
+ * applied and nothing is printed on the calling thread. An Object
+ * argument is turned into a String straight away, though, since it may
+ * be a shape that the event thread goes on changing, or a view whose
+ * slot holds a different shape by the time the buffer is drained. A
+ * background thread drains the buffer a few times a second and prints
+ * the events. If events come in faster
+ * than that, the oldest are overwritten and the number lost is printed.
+ *
+ * While the log is disabled, log() returns straight away, and since
+ * there are overloads for each number of arguments, callers don't even
+ * allocate a varargs array.
+ */
+class EventLog
+{
+    static final int FLUSH_MILLIS = 100;
+
+    private final PrintStream out;
+    private final String[] formats;
+    private final int[] firstArgs;
+    private final int[] secondArgs;
+    private final String[] stringArgs;
+    private final byte[] argCounts;
+    private volatile boolean enabled;
+    // events written and read so far; the buffer holds [read, written)
+    private long written;
+    private long read;
+    private long dropped;
+
+    /**
+     * @param capacity how many events to hold between flushes
+     * @param out where to print the events
+     */
+    EventLog(int capacity, PrintStream out) {
+        this.out = out;
+        this.formats = new String[capacity];
+        this.firstArgs = new int[capacity];
+        this.secondArgs = new int[capacity];
+        this.stringArgs = new String[capacity];
+        this.argCounts = new byte[capacity];
+        ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "EventLog");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                // an exception would cancel the task, and with it the log
+                try {
+                    flush();
+                } catch (RuntimeException e) {
+                    System.err.println("event log flush failed: " + e);
+                }
+            }
+        }, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    void log(String message) {
+        if (enabled) {
+            add(message, 0, 0, null, 0);
+        }
+    }
+
+    void log(String format, Object arg) {
+        if (enabled) {
+            add(format, 0, 0, String.valueOf(arg), 1);
+        }
+    }
+
+    void log(String format, int arg) {
+        if (enabled) {
+            add(format, arg, 0, null, 2);
+        }
+    }
+
+    void log(String format, int first, int second) {
+        if (enabled) {
+            add(format, first, second, null, 3);
+        }
+    }
+
+    private synchronized void add(String format, int first, int second, String arg, int argCount) {
+        if (written - read == formats.length) {
+            read++;
+            dropped++;
+        }
+        int i = (int)(written % formats.length);
+        formats[i] = format;
+        firstArgs[i] = first;
+        secondArgs[i] = second;
+        stringArgs[i] = arg;
+        argCounts[i] = (byte)argCount;
+        written++;
+    }
+
+    /**
+     * Print every event in the buffer. The buffer is only locked while
+     * the events are copied out, not while they are formatted.
+     */
+    void flush() {
+        String[] f;
+        int[] first;
+        int[] second;
+        String[] str;
+        byte[] counts;
+        long lost;
+        synchronized (this) {
+            int n = (int)(written - read);
+            if (n == 0 && dropped == 0) {
+                return;
+            }
+            f = new String[n];
+            first = new int[n];
+            second = new int[n];
+            str = new String[n];
+            counts = new byte[n];
+            for (int j = 0; j < n; j++) {
+                int i = (int)((read + j) % formats.length);
+                f[j] = formats[i];
+                first[j] = firstArgs[i];
+                second[j] = secondArgs[i];
+                str[j] = stringArgs[i];
+                counts[j] = argCounts[i];
+                // don't keep event arguments alive
+                stringArgs[i] = null;
+            }
+            read = written;
+            lost = dropped;
+            dropped = 0;
+        }
+        StringBuilder text = new StringBuilder();
+        if (lost > 0) {
+            text.append("... ").append(lost).append(" events dropped\n");
+        }
+        for (int j = 0; j < f.length; j++) {
+            try {
+                switch (counts[j]) {
+                case 0:
+                    text.append(f[j]);
+                    break;
+                case 1:
+                    text.append(String.format(f[j], str[j]));
+                    break;
+                case 2:
+                    text.append(String.format(f[j], first[j]));
+                    break;
+                default:
+                    text.append(String.format(f[j], first[j], second[j]));
+                    break;
+                }
+            } catch (IllegalFormatException e) {
+                // print the rest rather than lose them with this one
+                text.append(f[j]).append(" (").append(e).append(')');
+            }
+            text.append('\n');
+        }
+        out.print(text);
+        out.flush();
+    }
+}
@@ -0,0 +1,210 @@
+package drawshapes;
+
+/**
+ * The exact area a shape fills, for hit tests that a bounding box is
+ * too rough for: a click in the empty corner of a circle's or a
+ * triangle's box shouldn't pick that shape.
+ *
+ * An outline is either a circle or a convex polygon. Callers are
+ * expected to compare bounding boxes first, since that rules out most
+ * shapes for a fraction of the cost; the tests here are only for the
+ * few shapes that get through.
+ *
+ * contains() takes a pixel and tests it the way Java2D decides which
+ * pixels a fill covers, so a click hits a rectangle or a triangle
+ * exactly when it lands on one of its pixels. Java2D draws circles as
+ * flattened curves, so along a circle's rim the two can disagree by a
+ * pixel.
+ */
+class Outline
+{
+    // for a circle; xs and ys are null
+    private final double cx;
+    private final double cy;
+    private final double r;
+    // corners of a polygon, going either way round
+    private final double[] xs;
+    private final double[] ys;
+
+    private Outline(double cx, double cy, double r, double[] xs, double[] ys) {
+        this.cx = cx;
+        this.cy = cy;
+        this.r = r;
+        this.xs = xs;
+        this.ys = ys;
+    }
+
+    /**
+     * The area g.fillOval(x, y, diameter, diameter) covers.
+     */
+    static Outline circle(int x, int y, int diameter) {
+        return new Outline(x + diameter / 2.0, y + diameter / 2.0, diameter / 2.0, null, null);
+    }
+
+    /**
+     * The area g.fillRect(x, y, width, height) covers.
+     */
+    static Outline rect(int x, int y, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return polygon(new double[0], new double[0]);
+        }
+        return polygon(new double[] {x, x + width, x + width, x},
+                new double[] {y, y, y + height, y + height});
+    }
+
+    /**
+     * The area g.fillPolygon() covers with the given corners.
+     */
+    static Outline triangle(int x0, int y0, int x1, int y1, int x2, int y2) {
+        return polygon(new double[] {x0, x1, x2}, new double[] {y0, y1, y2});
+    }
+
+    private static Outline polygon(double[] xs, double[] ys) {
+        return new Outline(0, 0, 0, xs, ys);
+    }
+
+    /**
+     * Return the outline of any shape in a scene, or null if all that
+     * is known about it is its bounding box.
+     * @param s
+     * @return
+     */
+    static Outline of(IShape s) {
+        if (s instanceof AbstractShape) {
+            return ((AbstractShape)s).outline();
+        }
+        if (s instanceof CompactShapeStore.ShapeView) {
+            CompactShapeStore.ShapeView v = (CompactShapeStore.ShapeView)s;
+            return v.store().outline(v.slot());
+        }
+        return null;
+    }
+
+    private boolean isCircle() {
+        return xs == null;
+    }
+
+    /**
+     * Does the shape cover the pixel at (x, y)?
+     */
+    boolean contains(int x, int y) {
+        // where Java2D samples the pixel, once it has nudged the
+        // shape's corners by its quarter-pixel normalization
+        double px = x + 0.25;
+        double py = y + 0.25;
+        if (isCircle()) {
+            double dx = px - cx;
+            double dy = py - cy;
+            return r > 0 && dx * dx + dy * dy <= r * r;
+        }
+        return polygonContains(px, py);
+    }
+
+    /**
+     * Do the two shapes have any point in common? Touching counts.
+     */
+    boolean intersects(Outline other) {
+        if (isCircle() && other.isCircle()) {
+            double dx = cx - other.cx;
+            double dy = cy - other.cy;
+            double rr = r + other.r;
+            return r > 0 && other.r > 0 && dx * dx + dy * dy <= rr * rr;
+        }
+        if (isCircle()) {
+            return other.polygonIntersectsCircle(cx, cy, r);
+        }
+        if (other.isCircle()) {
+            return polygonIntersectsCircle(other.cx, other.cy, other.r);
+        }
+        return polygonsIntersect(this, other);
+    }
+
+    /**
+     * Twice the signed area; zero for a polygon that covers nothing.
+     */
+    private double turn() {
+        double sum = 0;
+        for (int i = 0; i < xs.length; i++) {
+            int j = (i + 1) % xs.length;
+            sum += xs[i] * ys[j] - xs[j] * ys[i];
+        }
+        return sum;
+    }
+
+    private boolean polygonContains(double px, double py) {
+        double turn = turn();
+        if (turn == 0) {
+            return false;
+        }
+        // inside, or on an edge, if it is on the inner side of every edge
+        for (int i = 0; i < xs.length; i++) {
+            int j = (i + 1) % xs.length;
+            double side = (xs[j] - xs[i]) * (py - ys[i]) - (ys[j] - ys[i]) * (px - xs[i]);
+            if (side * turn < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean polygonIntersectsCircle(double x, double y, double radius) {
+        if (radius <= 0 || turn() == 0) {
+            return false;
+        }
+        if (polygonContains(x, y)) {
+            return true;
+        }
+        // otherwise the circle has to reach an edge
+        for (int i = 0; i < xs.length; i++) {
+            int j = (i + 1) % xs.length;
+            double ex = xs[j] - xs[i];
+            double ey = ys[j] - ys[i];
+            double t = ((x - xs[i]) * ex + (y - ys[i]) * ey) / (ex * ex + ey * ey);
+            t = Math.max(0, Math.min(1, t));
+            double dx = xs[i] + t * ex - x;
+            double dy = ys[i] + t * ey - y;
+            if (dx * dx + dy * dy <= radius * radius) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Separating axis test: two convex polygons are apart exactly when
+     * some edge of one has both polygons on opposite sides of it.
+     */
+    private static boolean polygonsIntersect(Outline a, Outline b) {
+        if (a.turn() == 0 || b.turn() == 0) {
+            return false;
+        }
+        return !hasSeparatingEdge(a, b) && !hasSeparatingEdge(b, a);
+    }
+
+    private static boolean hasSeparatingEdge(Outline a, Outline b) {
+        for (int i = 0; i < a.xs.length; i++) {
+            int j = (i + 1) % a.xs.length;
+            // normal to the edge
+            double nx = a.ys[j] - a.ys[i];
+            double ny = a.xs[i] - a.xs[j];
+            double minA = Double.POSITIVE_INFINITY;
+            double maxA = Double.NEGATIVE_INFINITY;
+            for (int k = 0; k < a.xs.length; k++) {
+                double d = a.xs[k] * nx + a.ys[k] * ny;
+                minA = Math.min(minA, d);
+                maxA = Math.max(maxA, d);
+            }
+            double minB = Double.POSITIVE_INFINITY;
+            double maxB = Double.NEGATIVE_INFINITY;
+            for (int k = 0; k < b.xs.length; k++) {
+                double d = b.xs[k] * nx + b.ys[k] * ny;
+                minB = Math.min(minB, d);
+                maxB = Math.max(maxB, d);
+            }
+            if (maxA < minB || maxB < minA) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,137 @@
+package drawshapes;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Finds every pair of overlapping shapes in a list by sort and sweep.
+ *
+ * The shapes are sorted by the left edge of their bounding box. A shape
+ * can then only overlap the shapes after it in that order whose left
+ * edge is no further right than its own right edge, so each shape
+ * sweeps forward over just those, checks their boxes for vertical
+ * overlap and, if asked, checks their exact outlines too. For shapes
+ * spread over a scene that is close to O(n log n + pairs) rather than
+ * the O(n^2) of testing every shape against every other.
+ *
+ * Each shape's sweep only reads the sorted arrays, so the sorted order
+ * is cut into ranges that are swept on the common fork/join pool.
+ * Pairs go straight to a Scene.OverlapHandler as they are found instead of
+ * into a list, since a dense scene can have far more pairs than shapes.
+ */
+class OverlapFinder
+{
+    // a range with fewer shapes than this is swept on one thread
+    static final int MIN_SWEEP_SIZE = 4096;
+
+    private final IShape[] shapes;
+    // bounds of shapes[i], with the shapes sorted by left edge
+    private final int[] left;
+    private final int[] right;
+    private final int[] top;
+    private final int[] bottom;
+    // exact outlines, or null to go by the boxes alone
+    private final Outline[] outlines;
+
+    /**
+     * Take a copy of the shapes' bounds, sorted by left edge. The shapes
+     * must not change until the last call to find() returns.
+     * @param list
+     * @param exact whether pairs must also pass the exact outline test
+     */
+    OverlapFinder(List<IShape> list, boolean exact) {
+        int n = list.size();
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            // left edge in the high half, so sorting the keys sorts by it
+            keys[i] = ((long)list.get(i).getBoundingBox().getLeft() << 32) | i;
+        }
+        Arrays.parallelSort(keys);
+        shapes = new IShape[n];
+        left = new int[n];
+        right = new int[n];
+        top = new int[n];
+        bottom = new int[n];
+        outlines = exact ? new Outline[n] : null;
+        for (int k = 0; k < n; k++) {
+            IShape s = list.get((int)keys[k]);
+            BoundingBox box = s.getBoundingBox();
+            shapes[k] = s;
+            left[k] = box.getLeft();
+            right[k] = box.getRight();
+            top[k] = box.getTop();
+            bottom[k] = box.getBottom();
+            if (exact) {
+                outlines[k] = Outline.of(s);
+            }
+        }
+    }
+
+    /**
+     * Hand every overlapping pair to the handler once, in no particular
+     * order, and return once they have all been handed over.
+     * @param handler
+     * @return the number of pairs
+     */
+    long find(Scene.OverlapHandler handler) {
+        if (shapes.length < 2 * MIN_SWEEP_SIZE) {
+            return sweep(0, shapes.length, handler);
+        }
+        return ForkJoinPool.commonPool().invoke(new SweepTask(handler, 0, shapes.length));
+    }
+
+    /**
+     * Sweep forward from each shape in [lo, hi) of the sorted order.
+     */
+    private long sweep(int lo, int hi, Scene.OverlapHandler handler) {
+        long pairs = 0;
+        for (int i = lo; i < hi; i++) {
+            for (int j = i + 1; j < shapes.length && left[j] <= right[i]; j++) {
+                if (top[j] <= bottom[i] && bottom[j] >= top[i] && confirm(i, j)) {
+                    handler.overlap(shapes[i], shapes[j]);
+                    pairs++;
+                }
+            }
+        }
+        return pairs;
+    }
+
+    private boolean confirm(int i, int j) {
+        if (outlines == null || outlines[i] == null || outlines[j] == null) {
+            return true;
+        }
+        return outlines[i].intersects(outlines[j]);
+    }
+
+    /**
+     * Sweeps from the shapes in [lo, hi), splitting the range in half
+     * until it is small enough to do in one go.
+     */
+    @SuppressWarnings("serial")
+    private class SweepTask extends RecursiveTask<Long>
+    {
+        private final Scene.OverlapHandler handler;
+        private final int lo;
+        private final int hi;
+
+        SweepTask(Scene.OverlapHandler handler, int lo, int hi) {
+            this.handler = handler;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected Long compute() {
+            if (hi - lo <= MIN_SWEEP_SIZE) {
+                return sweep(lo, hi, handler);
+            }
+            int mid = (lo + hi) >>> 1;
+            SweepTask first = new SweepTask(handler, lo, mid);
+            first.fork();
+            long second = new SweepTask(handler, mid, hi).compute();
+            return first.join() + second;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Draws one scene into an image on several threads at once.
+ *
+ * The area to draw is cut into square tiles. Each worker draws the
+ * shapes that overlap its tile straight into the final image, through
+ * a Graphics clipped to the tile, so workers never write the same pixel.
+ * Clipping only decides which pixels are written, not how the shapes
+ * are rasterized, so the result is the same as a single Scene.draw().
+ * ParallelRendererTest checks this pixel for pixel, for the whole
+ * image and for part of it, in both storage modes.
+ *
+ * The scene must not change while render() runs.
+ */
+class ParallelRenderer
+{
+    static final int DEFAULT_TILE_SIZE = 256;
+
+    private final int tileSize;
+    private final ExecutorService pool;
+
+    /**
+     * @param threads how many workers to draw with
+     * @param tileSize width and height of a tile in pixels
+     */
+    ParallelRenderer(int threads, int tileSize) {
+        this.tileSize = tileSize;
+        this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ParallelRenderer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Fill the whole image with the background and draw the scene on it.
+     * @param scene
+     * @param image
+     * @param background
+     * @throws InterruptedException if interrupted before every tile is
+     *      drawn, leaving the image part drawn
+     */
+    void render(Scene scene, BufferedImage image, Color background) throws InterruptedException {
+        render(scene, image, background, new java.awt.Rectangle(0, 0, image.getWidth(), image.getHeight()));
+    }
+
+    /**
+     * Fill the given area of the image with the background and draw the
+     * part of the scene that falls inside it. Returns once every tile
+     * is done.
+     * @param scene
+     * @param image one of the predefined BufferedImage types
+     * @param background
+     * @param area
+     * @throws InterruptedException if interrupted before every tile is
+     *      drawn, leaving the image part drawn
+     */
+    void render(final Scene scene, final BufferedImage image, final Color background, java.awt.Rectangle area)
+            throws InterruptedException {
+        if (image.getType() == BufferedImage.TYPE_CUSTOM) {
+            throw new IllegalArgumentException("Can't render into a custom image type");
+        }
+        area = area.intersection(new java.awt.Rectangle(0, 0, image.getWidth(), image.getHeight()));
+        List<Callable<Void>> tiles = new ArrayList<Callable<Void>>();
+        for (int x = area.x; x < area.x + area.width; x += tileSize) {
+            for (int y = area.y; y < area.y + area.height; y += tileSize) {
+                final java.awt.Rectangle tile = new java.awt.Rectangle(x, y,
+                        Math.min(tileSize, area.x + area.width - x),
+                        Math.min(tileSize, area.y + area.height - y));
+                tiles.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        renderTile(scene, image, background, tile);
+                        return null;
+                    }
+                });
+            }
+        }
+        try {
+            // invokeAll() cancels the tiles not yet started if interrupted
+            for (Future<Void> f : pool.invokeAll(tiles)) {
+                f.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to render a tile", e.getCause());
+        }
+    }
+
+    private void renderTile(Scene scene, BufferedImage image, Color background, java.awt.Rectangle tile) {
+        Graphics2D g = image.createGraphics();
+        g.clipRect(tile.x, tile.y, tile.width, tile.height);
+        g.setColor(background);
+        g.fillRect(tile.x, tile.y, tile.width, tile.height);
+        scene.draw(g, tile);
+        g.dispose();
+    }
+
+    /**
+     * Stop the worker threads. The renderer can't be used afterwards.
+     */
+    void shutdown() {
+        pool.shutdown();
+    }
+}
@@ -31,13 +31,52 @@ public class Rectangle extends AbstractShape
     @Override
     public void draw(Graphics g) {
         if (isSelected()){
-            g.setColor(color.darker());
+            g.setColor(Util.darker(color));
         } else {
             g.setColor(getColor());
         }
         g.fillRect(getAnchorPoint().x, getAnchorPoint().y, width, height);
     }
 
+    @Override
+    Outline outline() {
+        return Outline.rect(anchorPoint.x, anchorPoint.y, width, height);
+    }
+
+    @Override
+    void addTo(ShapeBatcher.Batch batch) {
+        batch.addRect(anchorPoint.x, anchorPoint.y, width, height);
+    }
+
+    @Override
+    void getGeometry(int[] geometry, int i) {
+        geometry[i] = anchorPoint.x;
+        geometry[i + 1] = anchorPoint.y;
+        geometry[i + 2] = width;
+        geometry[i + 3] = height;
+    }
+
+    @Override
+    void setGeometry(int[] geometry, int i) {
+        setGeometry(geometry[i], geometry[i + 1], geometry[i + 2], geometry[i + 3]);
+    }
+
+    @Override
+    void transform(ShapeTransform t) {
+        double centerX = anchorPoint.x + width / 2.0;
+        double centerY = anchorPoint.y + height / 2.0;
+        int w = t.width(width);
+        int h = t.height(height);
+        setGeometry(t.x(centerX, centerY, w), t.y(centerX, centerY, h), w, h);
+    }
+
+    void setGeometry(int x, int y, int width, int height) {
+        anchorPoint.setLocation(x, y);
+        this.width = width;
+        this.height = height;
+        setBoundingBox(anchorPoint.x, anchorPoint.x+width, anchorPoint.y, anchorPoint.y+height);
+    }
+
     public String toString() {
         return String.format("RECTANGLE %d %d %d %d %s %s", 
                 getAnchorPoint().x,
@@ -69,6 +108,7 @@ public class Rectangle extends AbstractShape
     public void expand(int factor){
         width += factor;
         height += factor;
+        setBoundingBox(anchorPoint.x, anchorPoint.x+width, anchorPoint.y, anchorPoint.y+height);
     }
 
 }
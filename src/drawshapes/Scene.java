@@ -4,15 +4,24 @@ package drawshapes;
 
 import java.awt.Graphics;
 import java.awt.Point;
+import java.awt.geom.AffineTransform;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Scanner;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.awt.Color;
 /**
  * A scene of shapes.  Uses the Model-View-Controller (MVC) design pattern,
@@ -24,72 +33,448 @@ import java.awt.Color;
  * rather than individual shapes, and to apply operations
  * to collections of shapes.
  * 
+ * A scene is edited on one thread, normally the event thread. Other
+ * threads read it through snapshots: publish() makes an immutable
+ * copy of the scene as it is now, and snapshot() hands the latest one
+ * to any thread, so saving or drawing in the background never races
+ * the user's edits.
+ * 
  * @author jspacco
  *
  */
 public class Scene implements Iterable<IShape>
 {
+    // text files at least this big are parsed in parallel by loadFromFile(File)
+    static final long PARALLEL_LOAD_SIZE = 4 * SceneParser.MIN_CHUNK_SIZE;
+    
     private List<IShape> shapeList=new LinkedList<IShape>();
+    private ShapeGrid index = new ShapeGrid();
+    // when not null, shapes live here instead of in shapeList and index
+    private CompactShapeStore compact;
+    // the selected shapes, kept up to date by setSelected(); compact
+    // stores keep their own selection bitset instead
+    private Set<IShape> selection = Collections.newSetFromMap(new IdentityHashMap<IShape, Boolean>());
     private SelectionRectangle selectRect;
     private boolean isDrag;
     private Point startDrag;
+    // area that needs repainting since the last call to takeDamage()
+    private java.awt.Rectangle damage;
+    // shapes drawn since startFrame(), added to by every draw on any thread
+    private final AtomicInteger drawnCount = new AtomicInteger();
+    // null unless something wants timings
+    private SceneMetrics metrics;
+    // the last snapshot made by publish(), for any thread to read
+    private volatile SceneSnapshot published = SceneSnapshot.EMPTY;
+    // changes are only tracked once something has been published
+    private boolean tracking;
+    // the shapes changed since the last publish(), by position, unless
+    // the shapes have been replaced or changed in bulk since
+    private final Map<Integer, IShape> unpublished = new TreeMap<Integer, IShape>();
+    private boolean unpublishedAll;
+    // shapes removed or put back since the last publish() shift every
+    // position from the first of them on, so all of those count as changed
+    private int unpublishedFrom = Integer.MAX_VALUE;
+    // where each shape is in shapeList, as of the last publish() plus later adds
+    private final Map<IShape, Integer> positions = new IdentityHashMap<IShape, Integer>();
+    // when not null, the scene is a copy that still shares its shapes with
+    // this snapshot, and shapeList or compact are only filled from it
+    // the first time something needs them; see copy()
+    private SceneSnapshot base;
+    
+    /**
+     * Receives the pairs of overlapping shapes found by findOverlaps().
+     */
+    public interface OverlapHandler
+    {
+        /**
+         * Called once for each pair of shapes that overlap. This is called
+         * from several threads at once, so it has to be thread-safe.
+         * @param a
+         * @param b
+         */
+        void overlap(IShape a, IShape b);
+    }
+    
+    public Scene() {
+        this(false);
+    }
+    
+    /**
+     * Create an empty scene.
+     * 
+     * In compact mode the shapes are kept in parallel arrays rather than
+     * as one object per shape, which uses far less memory for big scenes.
+     * Shapes handed out by a compact scene are views onto those arrays.
+     * 
+     * @param compact whether to use compact storage
+     */
+    public Scene(boolean compact) {
+        if (compact) {
+            this.compact = new CompactShapeStore();
+            this.compact.setIndexed(true);
+        }
+    }
+    
+    public boolean isCompact() {
+        return compact != null;
+    }
+    
+    /**
+     * Record timings and counts into the given metrics, or stop
+     * recording them if it is null.
+     * @param metrics
+     */
+    void setMetrics(SceneMetrics metrics) {
+        this.metrics = metrics;
+    }
     
+    SceneMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Stretch the selection rectangle to the given point, so that exactly
+     * the shapes it touches are selected.
+     * 
+     * Only shapes in the area between the old and the new rectangle can
+     * change, so only that area is looked at, and a small mouse movement
+     * costs little however big the scene is.
+     * @param drag
+     */
     public void updateSelectRect(Point drag) {
-        for (IShape s : this){
-            s.setSelected(false);
+        long start = metrics != null ? System.nanoTime() : 0;
+        stretchSelectRect(drag);
+        if (metrics != null) {
+            metrics.selectRectTime.recordSince(start);
         }
-        if (drag.x > startDrag.x){
-            if (drag.y > startDrag.y){
-                // top-left to bottom-right
-                selectRect = new SelectionRectangle(startDrag.x, drag.x, startDrag.y, drag.y);
-            } else {
-                // bottom-left to top-right
-                selectRect = new SelectionRectangle(startDrag.x, drag.x, drag.y, startDrag.y);
-            }
+    }
+    
+    private void stretchSelectRect(Point drag) {
+        materialize();
+        int left = Math.min(startDrag.x, drag.x);
+        int right = Math.max(startDrag.x, drag.x);
+        int top = Math.min(startDrag.y, drag.y);
+        int bottom = Math.max(startDrag.y, drag.y);
+        if (selectRect == null) {
+            // first update of this drag, so start from nothing selected
+            clearSelection();
+            selectRect = new SelectionRectangle(left, right, top, bottom);
+            reselect(left, right, top, bottom);
+            damage(selectRect.getBoundingBox());
+            return;
+        }
+        BoundingBox box = selectRect.getBoundingBox();
+        int oldLeft = box.getLeft();
+        int oldRight = box.getRight();
+        int oldTop = box.getTop();
+        int oldBottom = box.getBottom();
+        damage(box);
+        selectRect.set(left, right, top, bottom);
+        damage(box);
+        // shapes the rectangle has left, then shapes it has reached
+        reselectDifference(oldLeft, oldRight, oldTop, oldBottom, left, right, top, bottom);
+        reselectDifference(left, right, top, bottom, oldLeft, oldRight, oldTop, oldBottom);
+    }
+    
+    /**
+     * Update the selection of the shapes in the part of rectangle a
+     * that is outside rectangle b. That part is cut into at most four
+     * strips: the full-height ones to the left and right of b, then
+     * the ones above and below b.
+     */
+    private void reselectDifference(int aLeft, int aRight, int aTop, int aBottom,
+            int bLeft, int bRight, int bTop, int bBottom) {
+        int left = Math.max(aLeft, bLeft);
+        int right = Math.min(aRight, bRight);
+        int top = Math.max(aTop, bTop);
+        int bottom = Math.min(aBottom, bBottom);
+        if (left > right || top > bottom) {
+            reselect(aLeft, aRight, aTop, aBottom);
+            return;
+        }
+        if (aLeft < left) {
+            reselect(aLeft, left - 1, aTop, aBottom);
+        }
+        if (right < aRight) {
+            reselect(right + 1, aRight, aTop, aBottom);
+        }
+        if (aTop < top) {
+            reselect(left, right, aTop, top - 1);
+        }
+        if (bottom < aBottom) {
+            reselect(left, right, bottom + 1, aBottom);
+        }
+    }
+    
+    /**
+     * Select the shapes in the given area that touch the selection
+     * rectangle, and deselect the others. A shape has to touch the
+     * rectangle itself, not just with its bounding box, so dragging over
+     * the empty corner of a circle's box doesn't select the circle. A
+     * drag along a single row or column has no area and selects nothing.
+     */
+    private void reselect(int left, int right, int top, int bottom) {
+        List<IShape> shapes;
+        if (compact != null) {
+            shapes = compact.select(left, right, top, bottom);
         } else {
-            if (drag.y > startDrag.y){
-                // top-right to bottom-left
-                selectRect = new SelectionRectangle(drag.x, startDrag.x, startDrag.y, drag.y);
-            } else {
-                // bottom-left to top-right
-                selectRect = new SelectionRectangle(drag.x, startDrag.x, drag.y, startDrag.y);
-            }
+            shapes = index.query(left, right, top, bottom);
         }
-        List<IShape> selectedShapes = this.select(selectRect);
-        for (IShape s : selectedShapes){
-            s.setSelected(true);
+        for (IShape s : shapes) {
+            // the same exact test select(IShape) uses
+            setSelected(s, selectRect.intersects(s));
         }
     }
     
     public void stopDrag() {
         this.isDrag = false;
+        if (selectRect != null) {
+            damage(selectRect.getBoundingBox());
+        }
+    }
+    
+    /**
+     * Select or deselect a shape, marking it for repainting if that changes
+     * how it looks.
+     * @param s
+     * @param b
+     */
+    public void setSelected(IShape s, boolean b) {
+        materialize();
+        if (s.isSelected() != b) {
+            s.setSelected(b);
+            damage(s.getBoundingBox());
+            markUnpublished(s);
+        }
+        if (compact == null) {
+            if (b) {
+                selection.add(s);
+            } else {
+                selection.remove(s);
+            }
+        }
+    }
+    
+    /**
+     * Deselect every shape in the scene.
+     */
+    public void clearSelection() {
+        for (IShape s : getSelectedShapes()) {
+            setSelected(s, false);
+        }
+    }
+    
+    /**
+     * Rebuild the selection from the shapes' selected flags, after the
+     * shapes have been replaced wholesale.
+     */
+    private void rebuildSelection() {
+        selection.clear();
+        for (IShape s : shapeList) {
+            if (s.isSelected()) {
+                selection.add(s);
+            }
+        }
+    }
+    
+    /**
+     * Return the area that has changed since the last time this was called,
+     * and start collecting again. Mutating methods on the scene add the old
+     * and new bounds of every shape they touch.
+     * 
+     * @return the changed area, or null if nothing has changed
+     */
+    public java.awt.Rectangle takeDamage() {
+        java.awt.Rectangle r = damage;
+        damage = null;
+        return r;
+    }
+    
+    /**
+     * Mark the area covered by the given box as needing a repaint.
+     * The box is copied, so it is safe to change it afterwards.
+     */
+    void damage(BoundingBox box) {
+        int left = Math.min(box.getLeft(), box.getRight());
+        int top = Math.min(box.getTop(), box.getBottom());
+        int width = Math.abs(box.getRight() - box.getLeft());
+        int height = Math.abs(box.getBottom() - box.getTop());
+        // one pixel of slack on every side, since fillOval can round past the box
+        java.awt.Rectangle r = new java.awt.Rectangle(left - 1, top - 1, width + 3, height + 3);
+        if (damage == null) {
+            damage = r;
+        } else {
+            damage.add(r);
+        }
+    }
+    
+    /**
+     * Mark everything as needing a repaint.
+     */
+    void damageAll() {
+        damage = new java.awt.Rectangle(Integer.MIN_VALUE / 4, Integer.MIN_VALUE / 4, Integer.MAX_VALUE / 2, Integer.MAX_VALUE / 2);
     }
     
     public void startDrag(Point p){
         this.isDrag = true;
         this.startDrag = p;
+        this.selectRect = null;
     }
     
     /**
      * Draw all the shapes in the scene using the given Graphics object.
+     * 
+     * Only shapes that overlap the Graphics clip are drawn, so repainting
+     * a small part of the panel only touches the shapes in that part.
      * @param g
      */
     public void draw(Graphics g) {
-        for (IShape s : shapeList) {
-            if (s!=null){
-                s.draw(g);
-            }
+        drawShapes(g, true, true);
+        if (isDrag && selectRect != null) {
+            selectRect.draw(g);
+        }
+    }
+    
+    /**
+     * Draw only the shapes that are not selected. These are the shapes
+     * that stay put while the user works, so they can be cached.
+     * @param g
+     */
+    void drawUnselected(Graphics g) {
+        drawShapes(g, true, false);
+    }
+    
+    /**
+     * Draw the selected shapes and the drag rectangle, which go on top
+     * of everything drawn by drawUnselected().
+     * @param g
+     */
+    void drawSelected(Graphics g) {
+        drawShapes(g, false, true);
+        if (isDrag && selectRect != null) {
+            selectRect.draw(g);
         }
-        if (isDrag) {
+    }
+    
+    /**
+     * Draw every shape that touches the given area, whatever the clip of
+     * the Graphics is. Shapes are drawn whole, so pixels outside the area
+     * may be drawn too.
+     * @param g
+     * @param area
+     */
+    void draw(Graphics g, java.awt.Rectangle area) {
+        drawShapes(g, area, true, true);
+        if (isDrag && selectRect != null) {
             selectRect.draw(g);
         }
     }
     
+    private void drawShapes(Graphics g, boolean unselected, boolean selected) {
+        drawShapes(g, g.getClipBounds(), unselected, selected);
+    }
+    
+    private void drawShapes(Graphics g, java.awt.Rectangle clip, boolean unselected, boolean selected) {
+        int left = Integer.MIN_VALUE;
+        int right = Integer.MAX_VALUE;
+        int top = Integer.MIN_VALUE;
+        int bottom = Integer.MAX_VALUE;
+        if (clip != null) {
+            // a pixel of slack, since fillOval can round past the bounding box
+            left = clip.x - 1;
+            right = clip.x + clip.width;
+            top = clip.y - 1;
+            bottom = clip.y + clip.height;
+        }
+        int drawn = 0;
+        if (base != null) {
+            drawn = base.draw(g, left, right, top, bottom, unselected, selected);
+        } else if (compact != null) {
+            drawn = compact.draw(g, left, right, top, bottom, unselected, selected);
+        } else {
+            Iterable<IShape> candidates = shapeList;
+            if (clip != null && index.isWorthQuerying(left, right, top, bottom)) {
+                candidates = index.query(left, right, top, bottom);
+            }
+            ShapeBatcher batcher = ShapeBatcher.canBatch(g) ? new ShapeBatcher(g) : null;
+            // when zoomed out, shapes under a pixel are only drawn as cells of this
+            DensityGrid dots = DensityGrid.forGraphics(g);
+            for (IShape s : candidates) {
+                if (s == null || !(s.isSelected() ? selected : unselected)) {
+                    continue;
+                }
+                BoundingBox box = s.getBoundingBox();
+                if (box.overlaps(left, right, top, bottom)) {
+                    if (dots == null || !dots.add(box.getLeft(), box.getRight(), box.getTop(), box.getBottom(),
+                            s.isSelected() ? Util.darker(s.getColor()) : s.getColor())) {
+                        if (batcher == null) {
+                            s.draw(g);
+                        } else {
+                            batch(g, batcher, s);
+                        }
+                    }
+                    drawn++;
+                }
+            }
+            if (batcher != null) {
+                batcher.flush();
+            }
+            if (dots != null) {
+                dots.draw(g);
+            }
+        }
+        drawnCount.addAndGet(drawn);
+    }
+    
+    private static void batch(Graphics g, ShapeBatcher batcher, IShape s) {
+        BoundingBox box = s.getBoundingBox();
+        AbstractShape shape = s instanceof AbstractShape ? (AbstractShape)s : null;
+        ShapeBatcher.Batch batch = batcher.batchFor(shape != null ? shape.drawColor() : null,
+                box.getLeft(), box.getRight(), box.getTop(), box.getBottom());
+        if (batch == null) {
+            s.draw(g);
+        } else {
+            shape.addTo(batch);
+        }
+    }
+    
+    /**
+     * Start counting drawn shapes from zero. A frame may take several
+     * draw calls, such as one per tile or per damaged area, so whoever
+     * paints the frame calls this once before them.
+     */
+    public void startFrame() {
+        drawnCount.set(0);
+    }
+    
+    /**
+     * The number of shapes drawn since startFrame(), over every draw
+     * call on every thread. A shape drawn by two tiles counts twice.
+     * @return
+     */
+    public int getDrawnCount() {
+        return drawnCount.get();
+    }
+    
+    /**
+     * The number of shapes skipped since startFrame() because they were
+     * outside the clip: the shapes in the scene less those drawn, or 0
+     * if some were drawn more than once.
+     * @return
+     */
+    public int getCulledCount() {
+        return Math.max(0, size() - drawnCount.get());
+    }
+    
     /**
      * Get an iterator that can iterate through all the shapes
      * in the scene.
      */
     public Iterator<IShape> iterator() {
+        materialize();
+        if (compact != null) {
+            return compact.iterator();
+        }
         return shapeList.iterator();
     }
     
@@ -100,15 +485,55 @@ public class Scene implements Iterable<IShape>
      */
     public List<IShape> select(Point point)
     {
-        List<IShape> selected = new LinkedList<IShape>();
-        for (IShape s : shapeList){
-            if (s.contains(point)){
-                selected.add(s);
+        long start = metrics != null ? System.nanoTime() : 0;
+        materialize();
+        List<IShape> selected;
+        if (compact != null) {
+            selected = compact.select(point);
+        } else {
+            selected = new ArrayList<IShape>();
+            for (IShape s : index.query(point)) {
+                // contains() checks the box before the exact shape
+                if (s.contains(point)) {
+                    selected.add(s);
+                }
             }
         }
+        if (metrics != null) {
+            metrics.selectTime.recordSince(start);
+        }
         return selected;
     }
     
+    /**
+     * Return the shape that is visible at the given point: the one drawn
+     * last of those that contain it, or null if there is none. Only the
+     * shapes in the point's grid cell are looked at, from the top down,
+     * and the search stops at the first hit.
+     * @param point
+     * @return
+     */
+    public IShape pickTopmost(Point point)
+    {
+        long start = metrics != null ? System.nanoTime() : 0;
+        materialize();
+        IShape picked = null;
+        if (compact != null) {
+            picked = compact.pickTopmost(point);
+        } else {
+            List<IShape> candidates = index.query(point);
+            for (int i = candidates.size() - 1; i >= 0 && picked == null; i--) {
+                if (candidates.get(i).contains(point)) {
+                    picked = candidates.get(i);
+                }
+            }
+        }
+        if (metrics != null) {
+            metrics.selectTime.recordSince(start);
+        }
+        return picked;
+    }
+    
     /**
      * Return a list of shapes in the scene that intersect the given shape.
      * @param s The shape
@@ -116,136 +541,689 @@ public class Scene implements Iterable<IShape>
      */
     public List<IShape> select(IShape shape)
     {
-        List<IShape> selected = new LinkedList<IShape>();
-        for (IShape s : shapeList){
-            if (s.intersects(shape)){
-                selected.add(s);
+        long start = metrics != null ? System.nanoTime() : 0;
+        materialize();
+        List<IShape> selected;
+        if (compact != null) {
+            selected = compact.select(shape);
+        } else {
+            // the grid only returns shapes whose box overlaps the shape's box
+            selected = index.query(shape.getBoundingBox());
+            for (Iterator<IShape> it = selected.iterator(); it.hasNext(); ) {
+                IShape s = it.next();
+                if (s == shape || !shape.intersects(s)) {
+                    it.remove();
+                }
             }
         }
+        if (metrics != null) {
+            metrics.selectTime.recordSince(start);
+        }
         return selected;
     }
     
+    /**
+     * Find every pair of shapes in the scene that overlap and hand each
+     * pair to the handler once, in no particular order. The shapes are
+     * sorted along x and swept, in parallel for big scenes, so this is
+     * much quicker than calling select(IShape) for every shape. The scene
+     * must not be changed until this returns.
+     * @param exact if true, pairs must overlap as intersects() does; if
+     *     false, it's enough for their bounding boxes to overlap
+     * @param handler
+     * @return the number of pairs found
+     */
+    public long findOverlaps(boolean exact, OverlapHandler handler)
+    {
+        materialize();
+        List<IShape> shapes;
+        if (compact != null) {
+            shapes = new ArrayList<IShape>(compact.size());
+            for (int i = 0; i < compact.size(); i++) {
+                shapes.add(compact.view(i));
+            }
+        } else {
+            shapes = new ArrayList<IShape>(shapeList);
+        }
+        return new OverlapFinder(shapes, exact).find(handler);
+    }
+    
     /**
      * Add a shape to the scene.  It will be rendered next time
      * the draw() method is invoked.
      * @param s
+     * @return an edit that undoes the add
      */
-    public void addShape(IShape s) {
+    public SceneEdit addShape(IShape s) {
+        materialize();
+        damage(s.getBoundingBox());
+        if (compact != null) {
+            compact.add(s);
+            IShape added = compact.view(compact.size() - 1);
+            markUnpublished(added);
+            return new SceneEdit.Add(added);
+        }
         shapeList.add(s);
+        index.insert(s);
+        if (tracking) {
+            positions.put(s, shapeList.size() - 1);
+            markUnpublished(s);
+        }
+        if (s.isSelected()) {
+            selection.add(s);
+        }
+        return new SceneEdit.Add(s);
     }
     
     /**
      * Remove a list of shapes from the given scene.
      * @param shapesToRemove
+     * @return an edit that puts the shapes back
+     */
+    public SceneEdit removeShapes(Collection<IShape> shapesToRemove) {
+        materialize();
+        if (compact != null) {
+            // views stop pointing at these shapes once they're gone, so keep copies
+            List<IShape> views = new ArrayList<IShape>(shapesToRemove);
+            Collections.sort(views, new Comparator<IShape>() {
+                @Override
+                public int compare(IShape a, IShape b) {
+                    return Integer.compare(((CompactShapeStore.ShapeView)a).slot(), ((CompactShapeStore.ShapeView)b).slot());
+                }
+            });
+            List<IShape> removed = new ArrayList<IShape>(views.size());
+            int[] positions = new int[views.size()];
+            for (int i = 0; i < views.size(); i++) {
+                damage(views.get(i).getBoundingBox());
+                removed.add(views.get(i).copy());
+                positions[i] = ((CompactShapeStore.ShapeView)views.get(i)).slot();
+            }
+            compact.remove(views);
+            if (positions.length > 0) {
+                markUnpublishedFrom(positions[0]);
+            }
+            return new SceneEdit.Remove(removed, positions, null);
+        }
+        Set<IShape> doomed = Collections.newSetFromMap(new IdentityHashMap<IShape, Boolean>());
+        doomed.addAll(shapesToRemove);
+        List<IShape> removed = new ArrayList<IShape>(doomed.size());
+        List<Integer> positions = new ArrayList<Integer>(doomed.size());
+        int i = 0;
+        for (Iterator<IShape> it = shapeList.iterator(); it.hasNext(); i++) {
+            IShape s = it.next();
+            if (doomed.contains(s)) {
+                damage(s.getBoundingBox());
+                removed.add(s);
+                positions.add(i);
+                it.remove();
+            }
+        }
+        long[] orders = new long[removed.size()];
+        int[] slots = new int[removed.size()];
+        for (int j = 0; j < removed.size(); j++) {
+            orders[j] = index.orderOf(removed.get(j));
+            slots[j] = positions.get(j);
+            index.remove(removed.get(j));
+            selection.remove(removed.get(j));
+            this.positions.remove(removed.get(j));
+        }
+        if (slots.length > 0) {
+            markUnpublishedFrom(slots[0]);
+        }
+        return new SceneEdit.Remove(removed, slots, orders);
+    }
+    
+    /**
+     * Put removed shapes back where they were, so they are drawn
+     * in the same order as before.
+     * @param shapes the removed shapes, in drawing order
+     * @param positions where each shape was in the scene
+     * @param orders each shape's drawing order in the index, or null in compact mode
      */
-    public void removeShapes(Collection<IShape> shapesToRemove) {
-        shapeList.removeAll(shapesToRemove);
+    void restoreShapes(List<IShape> shapes, int[] positions, long[] orders) {
+        materialize();
+        damage(shapes);
+        if (positions.length > 0) {
+            markUnpublishedFrom(positions[0]);
+        }
+        if (compact != null) {
+            compact.insert(shapes, positions);
+            return;
+        }
+        ListIterator<IShape> it = shapeList.listIterator();
+        int i = 0;
+        for (int j = 0; j < shapes.size(); j++) {
+            while (i < positions[j]) {
+                it.next();
+                i++;
+            }
+            it.add(shapes.get(j));
+            i++;
+            index.insert(shapes.get(j), orders[j]);
+            if (shapes.get(j).isSelected()) {
+                selection.add(shapes.get(j));
+            }
+        }
     }
     
     @Override   
     public String toString() {
-        String shapeText = "";
-        for (IShape s : shapeList) {
-            shapeText += s.toString() + "\n";
+        StringWriter text = new StringWriter();
+        try (SceneWriter out = new SceneWriter(text)) {
+            out.write(compactCopy(), null);
+        } catch (IOException e) {
+            // a StringWriter never throws
+            throw new IllegalStateException(e);
+        }
+        return text.toString();
+    }
+    
+    /**
+     * Copy the shapes into a new compact store. This is a cheap, flat
+     * snapshot that can be saved on another thread while the scene
+     * keeps changing.
+     * @return
+     */
+    CompactShapeStore compactCopy() {
+        if (base != null) {
+            return base.toStore();
+        }
+        if (compact != null) {
+            return compact.copy();
         }
-        return shapeText;
+        CompactShapeStore copy = new CompactShapeStore();
+        copy.addAll(shapeList);
+        return copy;
     }
 
+    /**
+     * Replace the shapes in the scene with the ones in the given file.
+     * Binary scene files are recognized by their header; anything else
+     * is read as text. Large text files are parsed on several threads.
+     * @param file
+     * @throws IOException if the file can't be read, or SceneFormatException
+     *      if it isn't a valid scene
+     */
     public void loadFromFile(File file) throws IOException{
-        Scanner scan = new Scanner(new FileInputStream(file));
-        shapeList.clear();
-        while(scan.hasNext()){
-            String shape = scan.next();
-            if(shape.equalsIgnoreCase("SQUARE")){
-                int x = scan.nextInt();
-                int y = scan.nextInt();
-                int length = scan.nextInt();
-                String color = scan.next();
-                Color squareColor = Util.stringToColor(color);
-                Square s = new Square(squareColor, x, y, length);
-                shapeList.add(s);
-                    
-            }else if(shape.equalsIgnoreCase("CIRCLE")){
-                int x = scan.nextInt();
-                int y = scan.nextInt();
-                int d = scan.nextInt();
-                String color = scan.next();
-                Color circleColor = Util.stringToColor(color);
-                Point center = new Point(x,y);
-                Circle c = new Circle(circleColor, center, d);
-                shapeList.add(c);
+        loadFromFile(file, file.length() >= PARALLEL_LOAD_SIZE);
+    }
+    
+    /**
+     * Replace the shapes in the scene with the ones in the given file.
+     * @param file
+     * @param parallel whether to parse a text file on several threads;
+     *      the shapes come out in the same order either way
+     * @throws IOException if the file can't be read, or SceneFormatException
+     *      if it isn't a valid scene
+     */
+    public void loadFromFile(File file, boolean parallel) throws IOException{
+        long start = metrics != null ? System.nanoTime() : 0;
+        if (BinarySceneFormat.isBinary(file)) {
+            setShapes(BinarySceneFormat.read(file));
+        } else if (parallel) {
+            setShapes(SceneParser.parseParallel(file));
+        } else {
+            setShapes(SceneParser.parse(file));
+        }
+        if (metrics != null) {
+            metrics.loadTime.recordSince(start);
+        }
+    }
+    
+    /**
+     * Save the scene to the given file. Files ending in .dsb get the
+     * binary format, anything else gets the text format from toString().
+     * @param file
+     * @throws IOException
+     */
+    public void saveToFile(File file) throws IOException {
+        long start = metrics != null ? System.nanoTime() : 0;
+        SceneWriter.save(compactCopy(), file, null);
+        if (metrics != null) {
+            metrics.saveTime.recordSince(start);
+        }
+    }
+    
+    /**
+     * The number of shapes in the scene.
+     * @return
+     */
+    public int size() {
+        if (base != null) {
+            return base.size();
+        }
+        return compact != null ? compact.size() : shapeList.size();
+    }
 
-            }else if(shape.equalsIgnoreCase("RECTANGLE")){
-                int x = scan.nextInt();
-                int y = scan.nextInt();
-                Point center = new Point(x,y);
-                int width = scan.nextInt();
-                int height = scan.nextInt();
-                String color = scan.next();
-                Color rectColor = Util.stringToColor(color);
-                Rectangle r = new Rectangle(center, width, height, rectColor);
-                shapeList.add(r);
+    /**
+     * Move the selected shapes.
+     * @param dx
+     * @param dy
+     * @return an edit that moves them back, or null if nothing is selected
+     */
+    public SceneEdit moveSelected(int dx, int dy){
+        List<IShape> moved = getSelectedShapes();
+        if (moved.isEmpty()) {
+            return null;
+        }
+        if (compact != null) {
+            damage(moved);
+            compact.moveSelected(dx, dy);
+            damage(moved);
+            markUnpublished(moved);
+        } else {
+            moveShapes(moved, dx, dy);
+        }
+        return new SceneEdit.Move(moved, dx, dy);
+    }
 
-            }else if(shape.equalsIgnoreCase("TRIANGLE")){
-                int x = scan.nextInt();
-                int y = scan.nextInt();
-                Point center = new Point(x,y);
-                int base = scan.nextInt();
-                int height = scan.nextInt();
-                String color = scan.next();
-                Color triColor = Util.stringToColor(color);
-                Triangle t = new Triangle(triColor, center, base, height);
-                shapeList.add(t);
+    /**
+     * Change the color of the selected shapes.
+     * @param color
+     * @return an edit that restores the old colors, or null if nothing is selected
+     */
+    public SceneEdit changeColor(Color color){
+        List<IShape> changed = getSelectedShapes();
+        if (changed.isEmpty()) {
+            return null;
+        }
+        SceneEdit edit = new SceneEdit.Recolor(changed);
+        damage(changed);
+        markUnpublished(changed);
+        if (compact != null) {
+            compact.changeColor(color);
+        } else {
+            for(IShape s: changed){
+                s.setColor(color);
             }
         }
+        return edit;
     }
 
-    public void moveSelected(int dx, int dy){
-        for(IShape s: shapeList){
-            if(s.isSelected())
-                s.move(dx, dy);
+    /**
+     * Apply an affine transform to the selected shapes, for instance to
+     * rotate, scale or mirror them about a point. The shapes can only be
+     * upright and axis-aligned, so each one's center goes through the
+     * transform and the shape is stretched to match; see ShapeTransform.
+     * 
+     * Big selections are transformed on several threads. The repaint
+     * area and the index are updated once, at the end.
+     * @param t
+     * @return an edit that puts the shapes back, or null if nothing is selected
+     */
+    public SceneEdit transformSelected(AffineTransform t) {
+        materialize();
+        ShapeTransform transform = new ShapeTransform(t);
+        List<IShape> shapes;
+        int[] before;
+        BoundingBox area;
+        if (compact != null) {
+            int[] slots = compact.selectedSlots();
+            before = new int[4 * slots.length];
+            area = compact.transform(slots, transform, before);
+            shapes = new ArrayList<IShape>(slots.length);
+            for (int slot : slots) {
+                shapes.add(compact.view(slot));
+            }
+        } else {
+            // the order doesn't matter, so skip sorting them as getSelectedShapes() does
+            shapes = new ArrayList<IShape>(selection);
+            before = new int[4 * shapes.size()];
+            area = transform.apply(shapes, before);
         }
+        if (shapes.isEmpty()) {
+            return null;
+        }
+        changedTogether(shapes, area);
+        return new SceneEdit.Transform(shapes, before);
     }
-
-    public void changeColor(Color color){
-        for(IShape s: shapeList){
-            if(s.isSelected()){
-                s.setColor(color);
+    
+    /**
+     * Put back the geometry saved by transformSelected().
+     */
+    void restoreGeometry(List<IShape> shapes, int[] before) {
+        materialize();
+        BoundingBox area;
+        if (compact != null) {
+            int[] slots = new int[shapes.size()];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = ((CompactShapeStore.ShapeView)shapes.get(i)).slot();
+            }
+            area = compact.restore(slots, before);
+        } else {
+            area = ShapeTransform.restore(shapes, before);
+        }
+        changedTogether(shapes, area);
+    }
+    
+    /**
+     * Catch up after the given shapes have all changed at once, covering
+     * the given area before and after. When they are a good part of the
+     * scene, the index and the next snapshot are redone in one pass over
+     * the scene rather than shape by shape.
+     */
+    private void changedTogether(List<IShape> shapes, BoundingBox area) {
+        if (area != null) {
+            damage(area);
+        }
+        boolean many = shapes.size() > size() / 8;
+        if (compact == null) {
+            if (many) {
+                index.reindex();
+            } else {
+                for (IShape s : shapes) {
+                    index.update(s);
+                }
             }
         }
+        if (many) {
+            unpublishedAll = true;
+        } else {
+            markUnpublished(shapes);
+        }
+    }
+    
+    void moveShapes(Collection<IShape> shapes, int dx, int dy) {
+        materialize();
+        for (IShape s : shapes) {
+            damage(s.getBoundingBox());
+            s.move(dx, dy);
+            damage(s.getBoundingBox());
+            index.update(s);
+            markUnpublished(s);
+        }
     }
 
-    public Scene copy(){
-        Scene copyScene = new Scene();
-        for (IShape s : shapeList){
-            copyScene.addShape(s.copy());
+    void recolorShapes(List<IShape> shapes, List<Color> colors) {
+        materialize();
+        for (int i = 0; i < shapes.size(); i++) {
+            damage(shapes.get(i).getBoundingBox());
+            shapes.get(i).setColor(colors.get(i));
+            markUnpublished(shapes.get(i));
+        }
+    }
+
+    void resizeShapes(Collection<IShape> shapes, int factor) {
+        materialize();
+        for (IShape s : shapes) {
+            damage(s.getBoundingBox());
+            s.expand(factor);
+            damage(s.getBoundingBox());
+            index.update(s);
+            markUnpublished(s);
+        }
+    }
+    
+    private void damage(Collection<IShape> shapes) {
+        for (IShape s : shapes) {
+            damage(s.getBoundingBox());
         }
+    }
+
+    /**
+     * Return a copy of the scene that can be changed without changing
+     * this one. The copy shares a published snapshot with this scene
+     * and draws and saves straight from it; it only copies the shapes
+     * out into its own storage when it is first changed or asked for its
+     * shapes. So taking a copy costs no more than a publish(), which is
+     * only the segments changed since the last copy or publish.
+     * 
+     * The cost is deferred, not saved: the first edit, selection query
+     * or iteration on the copy takes O(n) to copy every shape out and
+     * rebuild the index, however small the edit. Copies that are only
+     * drawn or saved never pay it.
+     * @return
+     */
+    public Scene copy(){
+        Scene copyScene = new Scene(compact != null);
+        copyScene.share(publish());
         return copyScene;
     }
     
+    /**
+     * Replace the shapes in this scene with copies of the shapes in the
+     * other one. Like copy(), this only shares the other scene's
+     * snapshot until the shapes are needed.
+     * @param other
+     */
     public void update(Scene other){
-        this.shapeList.clear();
-        for(IShape s: other.shapeList){
+        SceneSnapshot snapshot = other.publish();
+        setShapes(new LinkedList<IShape>());
+        share(snapshot);
+    }
+    
+    /**
+     * Make this empty scene a copy of the given snapshot, sharing it
+     * until materialize() is called.
+     */
+    private void share(SceneSnapshot snapshot) {
+        base = snapshot;
+        published = snapshot;
+        tracking = true;
+        unpublishedAll = false;
+        unpublishedFrom = Integer.MAX_VALUE;
+        unpublished.clear();
+        positions.clear();
+    }
+    
+    /**
+     * Copy the shapes of the shared snapshot, if there is one, into the
+     * scene's own storage, so they can be handed out and changed.
+     * published is left alone, so the next publish() only copies the
+     * segments that change after this. This is O(n) in the size of the
+     * scene, since every shape is copied and the index is rebuilt.
+     */
+    private void materialize() {
+        if (base == null) {
+            return;
+        }
+        SceneSnapshot snapshot = base;
+        base = null;
+        if (compact != null) {
+            compact = snapshot.toStore();
+            compact.setIndexed(true);
+            return;
+        }
+        for (IShape s : snapshot) {
+            positions.put(s, shapeList.size());
             shapeList.add(s);
         }
+        index.bulkLoad(shapeList);
+        rebuildSelection();
+    }
+    
+    /**
+     * Replace every shape in the scene with the given shapes.
+     */
+    private void setShapes(List<IShape> shapes) {
+        base = null;
+        damageAll();
+        unpublishedAll = true;
+        if (compact != null) {
+            compact.clear();
+            compact.addAll(shapes);
+            return;
+        }
+        shapeList.clear();
+        shapeList.addAll(shapes);
+        index.bulkLoad(shapeList);
+        rebuildSelection();
     }
 
-    public void resize(int factor){
-        for(IShape s : shapeList){
-            if(s.isSelected()){
-                s.expand(factor);
-            }
+    /**
+     * Expand (or with a negative factor, shrink) the selected shapes.
+     * @param factor
+     * @return an edit that undoes the resize, or null if nothing is selected
+     */
+    public SceneEdit resize(int factor){
+        materialize();
+        List<IShape> resized = getSelectedShapes();
+        if (resized.isEmpty()) {
+            return null;
+        }
+        if (compact != null) {
+            damage(resized);
+            compact.resize(factor);
+            damage(resized);
+            markUnpublished(resized);
+        } else {
+            resizeShapes(resized, factor);
         }
+        return new SceneEdit.Resize(resized, factor);
     }
 
-    public List<IShape> getSelectedShapes() {
-        List<IShape> selectedShapes = new LinkedList<IShape>();
-        for (IShape s : shapeList) {
-            if (s.isSelected()) {
-                selectedShapes.add(s);
+    /**
+     * Make an immutable snapshot of the scene as it is now and hand it
+     * to snapshot(). This has to be called on the thread that edits the
+     * scene. Only the segments of the last snapshot holding shapes that
+     * have changed since are copied, so publishing after a small edit is
+     * cheap; the first call, and the first after shapes are removed or
+     * replaced, copies the whole scene.
+     * @return the new snapshot, or the last one if nothing has changed
+     */
+    public SceneSnapshot publish() {
+        if (base != null) {
+            // nothing has changed since the snapshot was shared
+            return base;
+        }
+        SceneSnapshot last = published;
+        CompactShapeStore[] segments;
+        if (!tracking || unpublishedAll) {
+            segments = copySegments();
+        } else if (!unpublished.isEmpty() || unpublishedFrom != Integer.MAX_VALUE) {
+            segments = updateSegments(last.segments());
+        } else {
+            return last;
+        }
+        tracking = true;
+        unpublishedAll = false;
+        unpublishedFrom = Integer.MAX_VALUE;
+        unpublished.clear();
+        published = new SceneSnapshot(segments, size(), last);
+        return published;
+    }
+    
+    /**
+     * Return the last snapshot made by publish(). This can be called on
+     * any thread, and takes no time.
+     * @return
+     */
+    public SceneSnapshot snapshot() {
+        return published;
+    }
+    
+    /**
+     * Copy every shape into new segments.
+     */
+    private CompactShapeStore[] copySegments() {
+        int size = size();
+        CompactShapeStore[] segments = new CompactShapeStore[(size + SceneSnapshot.SEGMENT_SIZE - 1) / SceneSnapshot.SEGMENT_SIZE];
+        positions.clear();
+        copySegments(segments, 0);
+        return segments;
+    }
+    
+    /**
+     * Fill segments[from] onwards with new copies of the shapes at their
+     * positions, noting where each shape is.
+     */
+    private void copySegments(CompactShapeStore[] segments, int from) {
+        int i = from * SceneSnapshot.SEGMENT_SIZE;
+        Iterator<IShape> it = compact != null ? compact.iterator(i) : shapeList.listIterator(i);
+        while (it.hasNext()) {
+            IShape s = it.next();
+            if (i % SceneSnapshot.SEGMENT_SIZE == 0) {
+                segments[i / SceneSnapshot.SEGMENT_SIZE] = new CompactShapeStore();
+            }
+            segments[i / SceneSnapshot.SEGMENT_SIZE].add(s);
+            if (compact == null) {
+                positions.put(s, i);
+            }
+            i++;
+        }
+    }
+    
+    /**
+     * Copy the given segments, replacing only the ones with unpublished
+     * changes. Segments from the one holding unpublishedFrom on are
+     * made afresh from the shapes now at those positions. Before that,
+     * shapes have at most been added to the end since the last
+     * publish(), so each unpublished position is either a shape that
+     * was already there or the next new one.
+     */
+    private CompactShapeStore[] updateSegments(CompactShapeStore[] old) {
+        int count = (size() + SceneSnapshot.SEGMENT_SIZE - 1) / SceneSnapshot.SEGMENT_SIZE;
+        int fresh = Math.min(count, unpublishedFrom / SceneSnapshot.SEGMENT_SIZE);
+        CompactShapeStore[] segments = Arrays.copyOf(Arrays.copyOf(old, Math.min(old.length, fresh)), count);
+        if (fresh < count) {
+            copySegments(segments, fresh);
+        }
+        int copied = -1;
+        for (Map.Entry<Integer, IShape> e : unpublished.entrySet()) {
+            int k = e.getKey() / SceneSnapshot.SEGMENT_SIZE;
+            if (k >= fresh) {
+                // made afresh above, and the entries are in order
+                break;
+            }
+            int slot = e.getKey() % SceneSnapshot.SEGMENT_SIZE;
+            if (k != copied) {
+                // the old segment may be in use by readers, so change a copy
+                segments[k] = segments[k] == null ? new CompactShapeStore() : segments[k].copy();
+                copied = k;
+            }
+            if (slot < segments[k].size()) {
+                segments[k].replace(slot, e.getValue());
+            } else {
+                segments[k].add(e.getValue());
             }
         }
-        
+        return segments;
+    }
+    
+    /**
+     * Note that a shape has changed, so the next publish() copies it.
+     */
+    private void markUnpublished(IShape s) {
+        if (!tracking || unpublishedAll) {
+            return;
+        }
+        Integer position = compact != null ? ((CompactShapeStore.ShapeView)s).slot() : positions.get(s);
+        if (position != null && position < unpublishedFrom) {
+            unpublished.put(position, s);
+        }
+    }
+    
+    /**
+     * Note that every position from the given one on may hold a
+     * different shape, as after removing or putting back shapes there.
+     */
+    private void markUnpublishedFrom(int position) {
+        unpublishedFrom = Math.min(unpublishedFrom, position);
+    }
+    
+    private void markUnpublished(Collection<IShape> shapes) {
+        for (IShape s : shapes) {
+            markUnpublished(s);
+        }
+    }
+    
+    /**
+     * Return the selected shapes in drawing order. This only looks at the
+     * selected shapes, not the whole scene.
+     * @return
+     */
+    public List<IShape> getSelectedShapes() {
+        materialize();
+        if (compact != null) {
+            return compact.getSelected();
+        }
+        List<IShape> selectedShapes = new ArrayList<IShape>(selection);
+        Collections.sort(selectedShapes, new Comparator<IShape>() {
+            @Override
+            public int compare(IShape a, IShape b) {
+                return Long.compare(index.orderOf(a), index.orderOf(b));
+            }
+        });
         return selectedShapes;
     }
 }
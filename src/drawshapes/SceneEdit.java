@@ -0,0 +1,183 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One change made to a scene, recorded so it can be undone.
+ *
+ * An edit only remembers the shapes it touched and how they changed,
+ * so undoing it takes time proportional to the edit, not to the size
+ * of the scene. Edits are created by the Scene methods that make the
+ * change, and have to be undone in the reverse order they were made.
+ */
+public abstract class SceneEdit
+{
+    // roughly what one shape object with its anchor point and bounding box takes
+    static final long SHAPE_BYTES = 96;
+
+    protected final List<IShape> shapes;
+
+    protected SceneEdit(List<IShape> shapes) {
+        this.shapes = shapes;
+    }
+
+    /**
+     * Reverse this edit on the given scene.
+     * @param scene the scene the edit was made on
+     */
+    public abstract void undo(Scene scene);
+
+    /**
+     * The number of shapes this edit touched.
+     * @return
+     */
+    public int size() {
+        return shapes.size();
+    }
+
+    /**
+     * A rough count of the bytes of memory this edit holds on to: the
+     * edit itself and its list, plus a reference per shape. Edits that
+     * keep more per shape add to this.
+     * @return
+     */
+    long estimatedBytes() {
+        return 48 + 8L * shapes.size();
+    }
+
+    /**
+     * A shape was added.
+     */
+    static class Add extends SceneEdit
+    {
+        Add(IShape shape) {
+            super(Collections.singletonList(shape));
+        }
+
+        @Override
+        public void undo(Scene scene) {
+            scene.removeShapes(shapes);
+        }
+    }
+
+    /**
+     * Some shapes were removed. Remembers where each one was so
+     * it goes back at the same depth.
+     */
+    static class Remove extends SceneEdit
+    {
+        private final int[] positions;
+        private final long[] orders;
+
+        Remove(List<IShape> shapes, int[] positions, long[] orders) {
+            super(shapes);
+            this.positions = positions;
+            this.orders = orders;
+        }
+
+        @Override
+        public void undo(Scene scene) {
+            scene.restoreShapes(shapes, positions, orders);
+        }
+
+        /**
+         * The removed shapes are only kept alive by this edit, so they count
+         * too, along with each one's position and order.
+         */
+        @Override
+        long estimatedBytes() {
+            return super.estimatedBytes() + (SHAPE_BYTES + 12L) * shapes.size();
+        }
+    }
+
+    /**
+     * Some shapes were moved by the same amount.
+     */
+    static class Move extends SceneEdit
+    {
+        private final int dx;
+        private final int dy;
+
+        Move(List<IShape> shapes, int dx, int dy) {
+            super(shapes);
+            this.dx = dx;
+            this.dy = dy;
+        }
+
+        @Override
+        public void undo(Scene scene) {
+            scene.moveShapes(shapes, -dx, -dy);
+        }
+    }
+
+    /**
+     * Some shapes changed color. Remembers each shape's old color.
+     */
+    static class Recolor extends SceneEdit
+    {
+        private final List<Color> oldColors;
+
+        Recolor(List<IShape> shapes) {
+            super(shapes);
+            this.oldColors = new ArrayList<Color>(shapes.size());
+            for (IShape s : shapes) {
+                oldColors.add(s.getColor());
+            }
+        }
+
+        @Override
+        public void undo(Scene scene) {
+            scene.recolorShapes(shapes, oldColors);
+        }
+
+        @Override
+        long estimatedBytes() {
+            return super.estimatedBytes() + 8L * shapes.size();
+        }
+    }
+
+    /**
+     * Some shapes were expanded or shrunk by the same amount.
+     */
+    static class Resize extends SceneEdit
+    {
+        private final int factor;
+
+        Resize(List<IShape> shapes, int factor) {
+            super(shapes);
+            this.factor = factor;
+        }
+
+        @Override
+        public void undo(Scene scene) {
+            scene.resizeShapes(shapes, -factor);
+        }
+    }
+
+    /**
+     * Some shapes were transformed. Rounding means the inverse transform
+     * wouldn't always put them back, so each shape's old geometry is kept.
+     */
+    static class Transform extends SceneEdit
+    {
+        private final int[] before;
+
+        Transform(List<IShape> shapes, int[] before) {
+            super(shapes);
+            this.before = before;
+        }
+
+        @Override
+        public void undo(Scene scene) {
+            scene.restoreGeometry(shapes, before);
+        }
+
+        @Override
+        long estimatedBytes() {
+            return super.estimatedBytes() + 4L * before.length;
+        }
+    }
+}
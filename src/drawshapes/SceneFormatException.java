@@ -0,0 +1,27 @@
+package drawshapes;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a scene file can't be read because its contents
+ * are not in the expected format.
+ */
+@SuppressWarnings("serial")
+public class SceneFormatException extends IOException
+{
+    private final long line;
+
+    public SceneFormatException(long line, String message) {
+        super("line " + line + ": " + message);
+        this.line = line;
+    }
+
+    /**
+     * The line of the file where the problem was found, starting at 1.
+     * For binary scene files this is the record number, or 0 for the header.
+     * @return
+     */
+    public long getLine() {
+        return line;
+    }
+}
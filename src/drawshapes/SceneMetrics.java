@@ -0,0 +1,290 @@
+package drawshapes;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Timings and counters for a scene and the UI around it: how long frames,
+ * selections, loads and saves take, how many shapes each frame draws,
+ * and how big the undo history is.
+ *
+ * The scene and panel record into this when it has been handed to
+ * them; without one they don't even read the clock. Recording is
+ * thread-safe, since loads, saves and parallel rendering happen off the
+ * event thread. The numbers can be read through JMX once register()
+ * has been called, or drawn on the panel as a HUD.
+ */
+class SceneMetrics implements SceneMetricsMBean
+{
+    static final String OBJECT_NAME = "drawshapes:type=SceneMetrics";
+
+    final Histogram frameTime = new Histogram();
+    final Histogram selectTime = new Histogram();
+    final Histogram selectRectTime = new Histogram();
+    final Histogram loadTime = new Histogram();
+    final Histogram saveTime = new Histogram();
+
+    private final Scene scene;
+    // the scene's drawn count at the end of the last frame
+    private volatile int shapesDrawnLastFrame;
+    // the scene's size as of the last frame, since JMX reads come in on
+    // their own threads and the scene may only be touched on the event thread
+    private volatile int sceneSize;
+    private volatile int undoDepth;
+    private volatile long undoBytes;
+
+    SceneMetrics(Scene scene) {
+        this.scene = scene;
+    }
+
+    /**
+     * Publish these metrics through the platform MBean server.
+     * @throws JMException if something is already registered under the name
+     */
+    void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(this, new ObjectName(OBJECT_NAME));
+    }
+
+    /**
+     * Record that a frame has been painted, taking the number of shapes
+     * drawn from the scene's own count since startFrame(). Must be
+     * called on the thread that owns the scene.
+     * @param nanos how long painting it took
+     */
+    void endFrame(long nanos) {
+        frameTime.record(nanos);
+        shapesDrawnLastFrame = scene.getDrawnCount();
+        sceneSize = scene.size();
+    }
+
+    void setUndoHistory(int depth, long estimatedBytes) {
+        undoDepth = depth;
+        undoBytes = estimatedBytes;
+    }
+
+    /**
+     * A few lines of text summing up the metrics, for the HUD.
+     * @return
+     */
+    List<String> summary() {
+        List<String> lines = new ArrayList<String>();
+        lines.add(String.format("frame   p50 %6.2f  p99 %6.2f  max %6.2f ms",
+                frameTime.percentileMillis(0.5), frameTime.percentileMillis(0.99), frameTime.maxMillis()));
+        lines.add(String.format("drawn   %d of %d shapes", shapesDrawnLastFrame, sceneSize));
+        lines.add(String.format("select  p50 %6.3f  p99 %6.3f ms   drag p99 %6.3f ms",
+                selectTime.percentileMillis(0.5), selectTime.percentileMillis(0.99),
+                selectRectTime.percentileMillis(0.99)));
+        lines.add(String.format("load    max %.1f ms   save max %.1f ms",
+                loadTime.maxMillis(), saveTime.maxMillis()));
+        lines.add(String.format("undo    %d edits, ~%d KB", undoDepth, undoBytes / 1024));
+        return lines;
+    }
+
+    @Override
+    public long getFrameCount() {
+        return frameTime.count();
+    }
+
+    @Override
+    public double getFrameTimeMeanMillis() {
+        return frameTime.meanMillis();
+    }
+
+    @Override
+    public double getFrameTimeP50Millis() {
+        return frameTime.percentileMillis(0.5);
+    }
+
+    @Override
+    public double getFrameTimeP99Millis() {
+        return frameTime.percentileMillis(0.99);
+    }
+
+    @Override
+    public double getFrameTimeMaxMillis() {
+        return frameTime.maxMillis();
+    }
+
+    @Override
+    public int getShapesDrawnLastFrame() {
+        return shapesDrawnLastFrame;
+    }
+
+    @Override
+    public long getSelectCount() {
+        return selectTime.count();
+    }
+
+    @Override
+    public double getSelectP50Millis() {
+        return selectTime.percentileMillis(0.5);
+    }
+
+    @Override
+    public double getSelectP99Millis() {
+        return selectTime.percentileMillis(0.99);
+    }
+
+    @Override
+    public long getSelectRectCount() {
+        return selectRectTime.count();
+    }
+
+    @Override
+    public double getSelectRectP50Millis() {
+        return selectRectTime.percentileMillis(0.5);
+    }
+
+    @Override
+    public double getSelectRectP99Millis() {
+        return selectRectTime.percentileMillis(0.99);
+    }
+
+    @Override
+    public long getLoadCount() {
+        return loadTime.count();
+    }
+
+    @Override
+    public double getLoadMaxMillis() {
+        return loadTime.maxMillis();
+    }
+
+    @Override
+    public long getSaveCount() {
+        return saveTime.count();
+    }
+
+    @Override
+    public double getSaveMaxMillis() {
+        return saveTime.maxMillis();
+    }
+
+    @Override
+    public int getSceneSize() {
+        return sceneSize;
+    }
+
+    @Override
+    public int getUndoDepth() {
+        return undoDepth;
+    }
+
+    @Override
+    public long getUndoEstimatedBytes() {
+        return undoBytes;
+    }
+
+    @Override
+    public void reset() {
+        frameTime.reset();
+        selectTime.reset();
+        selectRectTime.reset();
+        loadTime.reset();
+        saveTime.reset();
+    }
+
+    /**
+     * A histogram of durations in nanoseconds. Each power of two is split
+     * into eight buckets, so a percentile is off by at most an eighth.
+     */
+    static class Histogram
+    {
+        private static final int SUB_BUCKETS = 8;
+        private static final int BUCKETS = 61 * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            counts.incrementAndGet(bucketOf(nanos));
+            count.incrementAndGet();
+            total.addAndGet(nanos);
+            long m;
+            while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+                // someone else raised the max; try again
+            }
+        }
+
+        /**
+         * Record the time since start, a value from System.nanoTime().
+         */
+        void recordSince(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        long count() {
+            return count.get();
+        }
+
+        double meanMillis() {
+            long n = count.get();
+            return n == 0 ? 0 : total.get() / (n * 1e6);
+        }
+
+        double maxMillis() {
+            return max.get() / 1e6;
+        }
+
+        /**
+         * The duration that the given fraction of recordings were no
+         * longer than, rounded down to the start of its bucket.
+         * @param fraction between 0 and 1
+         * @return
+         */
+        double percentileMillis(double fraction) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long)Math.ceil(fraction * n));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return lowerBound(i) / 1e6;
+                }
+            }
+            return maxMillis();
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts.set(i, 0);
+            }
+            count.set(0);
+            total.set(0);
+            max.set(0);
+        }
+
+        static int bucketOf(long nanos) {
+            if (nanos < SUB_BUCKETS) {
+                return (int)nanos;
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(nanos);
+            int sub = (int)(nanos >>> (exp - 3)) & (SUB_BUCKETS - 1);
+            return (exp - 2) * SUB_BUCKETS + sub;
+        }
+
+        static long lowerBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exp = bucket / SUB_BUCKETS + 2;
+            return (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << (exp - 3);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package drawshapes;
+
+/**
+ * The management interface of SceneMetrics, as seen through JMX under
+ * the name drawshapes:type=SceneMetrics. Times are in milliseconds.
+ */
+public interface SceneMetricsMBean
+{
+    long getFrameCount();
+    double getFrameTimeMeanMillis();
+    double getFrameTimeP50Millis();
+    double getFrameTimeP99Millis();
+    double getFrameTimeMaxMillis();
+    int getShapesDrawnLastFrame();
+
+    long getSelectCount();
+    double getSelectP50Millis();
+    double getSelectP99Millis();
+    long getSelectRectCount();
+    double getSelectRectP50Millis();
+    double getSelectRectP99Millis();
+
+    long getLoadCount();
+    double getLoadMaxMillis();
+    long getSaveCount();
+    double getSaveMaxMillis();
+
+    int getSceneSize();
+    int getUndoDepth();
+    long getUndoEstimatedBytes();
+
+    /**
+     * Forget everything recorded so far.
+     */
+    void reset();
+}
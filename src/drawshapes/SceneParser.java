@@ -0,0 +1,325 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Reads the text scene format written by Scene.toString(), one
+ * shape per line:
+ *
+ *   SQUARE x y length COLOR
+ *   CIRCLE x y diameter COLOR
+ *   RECTANGLE x y width height COLOR
+ *   TRIANGLE x y base height COLOR
+ *
+ * Words are separated by any whitespace, shape names can be in any
+ * case, and words that aren't a shape name (like the selected flag
+ * that toString() writes) are skipped.
+ *
+ * The parser works directly on the bytes of a memory-mapped file and
+ * turns words into numbers and keyword ids without creating Strings.
+ */
+class SceneParser
+{
+    private static final byte[] SQUARE = "SQUARE".getBytes();
+    private static final byte[] CIRCLE = "CIRCLE".getBytes();
+    private static final byte[] RECTANGLE = "RECTANGLE".getBytes();
+    private static final byte[] TRIANGLE = "TRIANGLE".getBytes();
+    private static final byte[] RED = "RED".getBytes();
+    private static final byte[] BLUE = "BLUE".getBytes();
+    private static final byte[] GREEN = "GREEN".getBytes();
+
+    // parseParallel() doesn't split files into chunks smaller than this
+    static final int MIN_CHUNK_SIZE = 1 << 20;
+
+    private final ByteBuffer buf;
+    private final int end;
+    private int pos;
+    private long line;
+    // the current word is buf[start, pos)
+    private int start;
+
+    /**
+     * Parse the bytes of buf from start up to (not including) end.
+     * @param buf
+     * @param start
+     * @param end
+     * @param firstLine the line number of the byte at start, for error messages
+     */
+    SceneParser(ByteBuffer buf, int start, int end, long firstLine) {
+        this.buf = buf;
+        this.pos = start;
+        this.end = end;
+        this.line = firstLine;
+    }
+
+    /**
+     * Read every shape in the given text scene file, in order.
+     * @param file
+     * @return
+     * @throws IOException if the file can't be read or isn't a valid scene
+     */
+    static List<IShape> parse(File file) throws IOException {
+        ByteBuffer buf = map(file);
+        List<IShape> shapes = new ArrayList<IShape>();
+        new SceneParser(buf, 0, buf.limit(), 1).parse(shapes);
+        return shapes;
+    }
+
+    /**
+     * Read every shape in the given text scene file, in order, parsing
+     * pieces of the file on several threads at once.
+     * 
+     * The file is cut into chunks at line breaks and the chunks are parsed
+     * on the common fork/join pool. The batches are joined in file order,
+     * so the result is the same as parse(). If a chunk can't be parsed on
+     * its own, for example because a shape is split over two lines, the
+     * whole file is parsed again on one thread, which also gives the
+     * right line number for a real error.
+     * 
+     * @param file
+     * @return
+     * @throws IOException if the file can't be read or isn't a valid scene
+     */
+    static List<IShape> parseParallel(File file) throws IOException {
+        ByteBuffer buf = map(file);
+        int chunks = Math.max(1, Math.min(buf.limit() / MIN_CHUNK_SIZE,
+                ForkJoinPool.getCommonPoolParallelism() * 4));
+        int[] bounds = new int[chunks + 1];
+        bounds[chunks] = buf.limit();
+        for (int i = 1; i < chunks; i++) {
+            int b = Math.max(bounds[i - 1], (int)((long)buf.limit() * i / chunks));
+            // start each chunk just after a line break
+            while (b < buf.limit() && buf.get(b) != '\n') {
+                b++;
+            }
+            bounds[i] = Math.min(buf.limit(), b + 1);
+        }
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        List<IShape>[] batches = new List[chunks];
+        boolean parsed = ForkJoinPool.commonPool().invoke(new ChunkTask(buf, bounds, batches, 0, chunks));
+        if (!parsed) {
+            return parse(file);
+        }
+        int total = 0;
+        for (List<IShape> batch : batches) {
+            total += batch.size();
+        }
+        List<IShape> shapes = new ArrayList<IShape>(total);
+        for (List<IShape> batch : batches) {
+            shapes.addAll(batch);
+        }
+        return shapes;
+    }
+
+    /**
+     * Parses chunks lo up to (not including) hi, splitting the work in
+     * half until there is one chunk left. Each chunk's shapes go into
+     * its own slot of batches.
+     */
+    @SuppressWarnings("serial")
+    private static class ChunkTask extends RecursiveTask<Boolean>
+    {
+        private final ByteBuffer buf;
+        private final int[] bounds;
+        private final List<IShape>[] batches;
+        private final int lo;
+        private final int hi;
+
+        ChunkTask(ByteBuffer buf, int[] bounds, List<IShape>[] batches, int lo, int hi) {
+            this.buf = buf;
+            this.bounds = bounds;
+            this.batches = batches;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected Boolean compute() {
+            if (hi - lo == 1) {
+                List<IShape> batch = new ArrayList<IShape>();
+                try {
+                    // line numbers aren't known here; errors are reported by the sequential retry
+                    new SceneParser(buf.duplicate(), bounds[lo], bounds[hi], 0).parse(batch);
+                } catch (SceneFormatException e) {
+                    return false;
+                }
+                batches[lo] = batch;
+                return true;
+            }
+            int mid = (lo + hi) >>> 1;
+            ChunkTask left = new ChunkTask(buf, bounds, batches, lo, mid);
+            left.fork();
+            boolean right = new ChunkTask(buf, bounds, batches, mid, hi).compute();
+            return left.join() && right;
+        }
+    }
+
+    /**
+     * Map the whole file into memory for reading.
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    static ByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Scene file is too big: " + file);
+            }
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Parse every shape in this parser's range and add them to the list.
+     * @param out
+     * @throws SceneFormatException
+     */
+    void parse(List<IShape> out) throws SceneFormatException {
+        while (nextWord()) {
+            if (wordEqualsIgnoreCase(SQUARE)) {
+                int x = nextInt();
+                int y = nextInt();
+                int length = nextInt();
+                Color color = nextColor();
+                out.add(new Square(color, x, y, length));
+            } else if (wordEqualsIgnoreCase(CIRCLE)) {
+                int x = nextInt();
+                int y = nextInt();
+                int d = nextInt();
+                Color color = nextColor();
+                out.add(new Circle(color, new Point(x, y), d));
+            } else if (wordEqualsIgnoreCase(RECTANGLE)) {
+                int x = nextInt();
+                int y = nextInt();
+                int width = nextInt();
+                int height = nextInt();
+                Color color = nextColor();
+                out.add(new Rectangle(new Point(x, y), width, height, color));
+            } else if (wordEqualsIgnoreCase(TRIANGLE)) {
+                int x = nextInt();
+                int y = nextInt();
+                int base = nextInt();
+                int height = nextInt();
+                Color color = nextColor();
+                out.add(new Triangle(color, new Point(x, y), base, height));
+            }
+        }
+    }
+
+    /**
+     * Move to the next word, counting lines along the way.
+     * @return false if there are no more words
+     */
+    private boolean nextWord() {
+        while (pos < end && isSpace(buf.get(pos))) {
+            if (buf.get(pos) == '\n') {
+                line++;
+            }
+            pos++;
+        }
+        start = pos;
+        while (pos < end && !isSpace(buf.get(pos))) {
+            pos++;
+        }
+        return pos > start;
+    }
+
+    private int nextInt() throws SceneFormatException {
+        if (!nextWord()) {
+            throw new SceneFormatException(line, "expected a number but the file ended");
+        }
+        int i = start;
+        boolean negative = false;
+        if (buf.get(i) == '-' || buf.get(i) == '+') {
+            negative = buf.get(i) == '-';
+            i++;
+        }
+        if (i == pos) {
+            throw new SceneFormatException(line, "expected a number but found " + word());
+        }
+        // accumulate as a negative number so Integer.MIN_VALUE fits
+        int value = 0;
+        for (; i < pos; i++) {
+            int digit = buf.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new SceneFormatException(line, "expected a number but found " + word());
+            }
+            if (value < (Integer.MIN_VALUE + digit) / 10) {
+                throw new SceneFormatException(line, "number out of range: " + word());
+            }
+            value = value * 10 - digit;
+        }
+        if (!negative) {
+            if (value == Integer.MIN_VALUE) {
+                throw new SceneFormatException(line, "number out of range: " + word());
+            }
+            value = -value;
+        }
+        return value;
+    }
+
+    private Color nextColor() throws SceneFormatException {
+        if (!nextWord()) {
+            throw new SceneFormatException(line, "expected a color but the file ended");
+        }
+        if (wordEquals(RED)) {
+            return Color.RED;
+        } else if (wordEquals(BLUE)) {
+            return Color.BLUE;
+        } else if (wordEquals(GREEN)) {
+            return Color.GREEN;
+        }
+        throw new SceneFormatException(line, "unexpected color: " + word());
+    }
+
+    private boolean wordEquals(byte[] keyword) {
+        if (pos - start != keyword.length) {
+            return false;
+        }
+        for (int i = 0; i < keyword.length; i++) {
+            if (buf.get(start + i) != keyword[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean wordEqualsIgnoreCase(byte[] keyword) {
+        if (pos - start != keyword.length) {
+            return false;
+        }
+        for (int i = 0; i < keyword.length; i++) {
+            // keywords are upper case letters, and clearing bit 5 upper-cases an ASCII letter
+            if ((buf.get(start + i) & ~0x20) != keyword[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The current word as a String. Only used for error messages.
+     */
+    private String word() {
+        byte[] bytes = new byte[pos - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buf.get(start + i);
+        }
+        return new String(bytes);
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == '\f' || b == 0x0B;
+    }
+}
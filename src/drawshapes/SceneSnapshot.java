@@ -0,0 +1,183 @@
+package drawshapes;
+
+import java.awt.Graphics;
+import java.awt.Point;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A copy of a scene as it was at one moment, which any thread can
+ * read while the scene itself goes on being edited.
+ *
+ * The shapes are kept in fixed-size segments, each a compact store
+ * that is never changed once the snapshot is made. When the scene
+ * publishes a new snapshot, only the segments holding shapes that
+ * changed are copied; the rest are shared with the snapshot before,
+ * so publishing after a small edit costs little however big the
+ * scene is.
+ *
+ * Shapes handed out by a snapshot are copies, so changing them
+ * changes neither the snapshot nor the scene.
+ */
+public class SceneSnapshot implements Iterable<IShape>
+{
+    // shapes per segment
+    static final int SEGMENT_SIZE = 1024;
+
+    static final SceneSnapshot EMPTY = new SceneSnapshot(new CompactShapeStore[0], 0, null);
+
+    private final CompactShapeStore[] segments;
+    // the union of each segment's shape bounds, as {left, right, top, bottom}
+    private final int[][] bounds;
+    private final int size;
+    private final long version;
+
+    /**
+     * @param segments full segments, except perhaps the last; none of
+     *      them may be changed afterwards
+     * @param size
+     * @param last the snapshot this one follows, or null; segments
+     *      shared with it keep their bounds rather than working them out
+     */
+    SceneSnapshot(CompactShapeStore[] segments, int size, SceneSnapshot last) {
+        this.segments = segments;
+        this.size = size;
+        this.version = last != null ? last.version + 1 : 0;
+        bounds = new int[segments.length][];
+        for (int k = 0; k < segments.length; k++) {
+            if (last != null && k < last.segments.length && last.segments[k] == segments[k]) {
+                bounds[k] = last.bounds[k];
+            } else {
+                bounds[k] = segments[k].bounds();
+            }
+        }
+    }
+
+    CompactShapeStore[] segments() {
+        return segments;
+    }
+
+    /**
+     * Snapshots published later by the same scene have higher versions.
+     * @return
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Draw the shapes that overlap the Graphics clip, as Scene.draw()
+     * would have drawn them when the snapshot was taken, but without
+     * the selection rectangle.
+     * @param g
+     */
+    public void draw(Graphics g) {
+        int left = Integer.MIN_VALUE;
+        int right = Integer.MAX_VALUE;
+        int top = Integer.MIN_VALUE;
+        int bottom = Integer.MAX_VALUE;
+        java.awt.Rectangle clip = g.getClipBounds();
+        if (clip != null) {
+            // a pixel of slack, since fillOval can round past the bounding box
+            left = clip.x - 1;
+            right = clip.x + clip.width;
+            top = clip.y - 1;
+            bottom = clip.y + clip.height;
+        }
+        draw(g, left, right, top, bottom, true, true);
+    }
+
+    /**
+     * Draw the shapes whose bounds overlap the given rectangle, choosing
+     * whether to include unselected and selected shapes.
+     * @return the number of shapes drawn
+     */
+    int draw(Graphics g, int l, int r, int t, int bt, boolean unselected, boolean selected) {
+        int drawn = 0;
+        // one batcher and density grid for the whole frame, not one per segment
+        ShapeBatcher batcher = ShapeBatcher.canBatch(g) ? new ShapeBatcher(g) : null;
+        DensityGrid dots = DensityGrid.forGraphics(g);
+        for (int k = 0; k < segments.length; k++) {
+            int[] b = bounds[k];
+            if (b[0] <= r && b[1] >= l && b[2] <= bt && b[3] >= t) {
+                drawn += segments[k].draw(g, l, r, t, bt, unselected, selected, batcher, dots);
+            }
+        }
+        if (batcher != null) {
+            batcher.flush();
+        }
+        if (dots != null) {
+            dots.draw(g);
+        }
+        return drawn;
+    }
+
+    /**
+     * Return copies of the shapes that cover the point, in drawing order.
+     * @param point
+     * @return
+     */
+    public List<IShape> select(Point point) {
+        List<IShape> found = new ArrayList<IShape>();
+        for (CompactShapeStore segment : segments) {
+            for (IShape s : segment.select(point)) {
+                found.add(s.copy());
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Save the shapes to a file, in the binary format for names ending
+     * in .dsb and as text otherwise.
+     * @param file
+     * @throws IOException
+     */
+    public void saveToFile(File file) throws IOException {
+        SceneWriter.save(this, file, null);
+    }
+
+    /**
+     * Copy all the segments into one new store.
+     * @return
+     */
+    CompactShapeStore toStore() {
+        CompactShapeStore all = new CompactShapeStore();
+        for (CompactShapeStore segment : segments) {
+            all.addAll(segment);
+        }
+        return all;
+    }
+
+    /**
+     * Iterates over copies of the shapes, in drawing order.
+     */
+    @Override
+    public Iterator<IShape> iterator() {
+        return new Iterator<IShape>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public IShape next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                int i = next++;
+                return segments[i / SEGMENT_SIZE].toShape(i % SEGMENT_SIZE);
+            }
+        };
+    }
+}
@@ -0,0 +1,162 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.function.IntConsumer;
+
+import drawshapes.DrawShapes.ShapeType;
+
+/**
+ * Writes shapes in the text scene format, one line per shape, straight
+ * to a Writer. Each line is the same as the shape's toString(), but
+ * numbers are formatted by hand into a reused buffer instead of
+ * going through String.format.
+ */
+class SceneWriter implements Closeable
+{
+    // how many shapes to write between progress reports
+    static final int PROGRESS_STEP = 10000;
+
+    private final Writer out;
+    private final char[] digits = new char[11];
+
+    SceneWriter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * Save a snapshot of a scene to a file, using the binary format for
+     * names ending in .dsb and the text format for anything else.
+     * @param shapes the shapes to save
+     * @param file
+     * @param progress told how many shapes have been written so far, or null
+     * @throws IOException
+     */
+    static void save(CompactShapeStore shapes, File file, IntConsumer progress) throws IOException {
+        if (BinarySceneFormat.hasBinaryExtension(file)) {
+            BinarySceneFormat.write(file, shapes, shapes.size(), progress);
+            return;
+        }
+        try (SceneWriter out = new SceneWriter(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file)), 1 << 16))) {
+            out.write(shapes, progress);
+        }
+    }
+
+    /**
+     * Save a published snapshot to a file, like save() above, but
+     * reading the snapshot's segments in place rather than first
+     * copying them into one store, so saving needs no copy of the
+     * scene.
+     * @param snapshot
+     * @param file
+     * @param progress told how many shapes have been written so far, or null
+     * @throws IOException
+     */
+    static void save(SceneSnapshot snapshot, File file, IntConsumer progress) throws IOException {
+        if (BinarySceneFormat.hasBinaryExtension(file)) {
+            // the snapshot hands out one shape at a time, straight from its segments
+            BinarySceneFormat.write(file, snapshot, snapshot.size(), progress);
+            return;
+        }
+        try (SceneWriter out = new SceneWriter(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file)), 1 << 16))) {
+            out.write(snapshot, progress);
+        }
+    }
+
+    /**
+     * Write every shape in the snapshot, in order, a segment at a time.
+     * @param snapshot
+     * @param progress told how many shapes have been written so far, or null
+     * @throws IOException
+     */
+    void write(SceneSnapshot snapshot, IntConsumer progress) throws IOException {
+        int written = 0;
+        int reported = 0;
+        for (CompactShapeStore segment : snapshot.segments()) {
+            segment.write(this, 0, segment.size());
+            written += segment.size();
+            if (progress != null && written - reported >= PROGRESS_STEP) {
+                progress.accept(written);
+                reported = written;
+            }
+        }
+        if (progress != null && reported != written) {
+            progress.accept(written);
+        }
+    }
+
+    /**
+     * Write every shape in the store, in order.
+     * @param shapes
+     * @param progress told how many shapes have been written so far, or null
+     * @throws IOException
+     */
+    void write(CompactShapeStore shapes, IntConsumer progress) throws IOException {
+        for (int from = 0; from < shapes.size(); from += PROGRESS_STEP) {
+            int to = Math.min(shapes.size(), from + PROGRESS_STEP);
+            shapes.write(this, from, to);
+            if (progress != null) {
+                progress.accept(to);
+            }
+        }
+    }
+
+    /**
+     * Write one shape as a line of text.
+     * @param type
+     * @param x the anchor point, as returned by getAnchorPoint()
+     * @param y
+     * @param a length, diameter, width or base
+     * @param b height, if the shape has one
+     * @param color
+     * @param selected
+     * @throws IOException
+     */
+    void writeShape(ShapeType type, int x, int y, int a, int b, Color color, boolean selected) throws IOException {
+        out.write(type.name());
+        writeInt(x);
+        writeInt(y);
+        writeInt(a);
+        if (type == ShapeType.RECTANGLE || type == ShapeType.TRIANGLE) {
+            writeInt(b);
+        }
+        out.write(' ');
+        out.write(Util.colorToString(color));
+        // Triangle.toString() has never written the selected flag
+        if (type != ShapeType.TRIANGLE) {
+            out.write(selected ? " true" : " false");
+        }
+        out.write('\n');
+    }
+
+    /**
+     * Write a space and then the number, without creating a String.
+     */
+    private void writeInt(int value) throws IOException {
+        out.write(' ');
+        long v = value;
+        if (v < 0) {
+            out.write('-');
+            v = -v;
+        }
+        int i = digits.length;
+        do {
+            digits[--i] = (char)('0' + v % 10);
+            v /= 10;
+        } while (v != 0);
+        out.write(digits, i, digits.length - i);
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -8,4 +8,14 @@ public class SelectionRectangle extends Rectangle
         super(left, right, top, bottom);
         setColor(new Color(1,1,1,0.5f));
     }
+    
+    /**
+     * Move and resize the rectangle in place.
+     */
+    void set(int left, int right, int top, int bottom) {
+        anchorPoint.setLocation(left, top);
+        width = right - left;
+        height = bottom - top;
+        setBoundingBox(left, right, top, bottom);
+    }
 }
@@ -0,0 +1,212 @@
+package drawshapes;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects shapes of the same color into batches, so a scene is drawn
+ * with one setColor() per color instead of per shape. The ovals of a
+ * batch go into one path that is filled in a single call; rectangles
+ * and triangles are still filled one at a time, since fillRect() is
+ * quicker than filling a path and Java2D fills polygons and paths with
+ * different rasterizers, so a path would not give the same pixels.
+ *
+ * Shapes are given in drawing order. A shape joins the open batch for
+ * its color unless it overlaps a batch of another color, in which case
+ * that batch is filled first. So no two open batches of different
+ * colors ever overlap, the order they are filled in doesn't matter,
+ * and every shape still ends up on top of the shapes it overlaps that
+ * came before it.
+ *
+ * Every ellipse goes round the same way, so a path filled with the
+ * non-zero rule covers exactly the pixels the ovals would cover one at
+ * a time. That, and drawing the shapes of a batch in any order, only
+ * holds for opaque colors drawn without antialiasing or a special
+ * composite; otherwise canBatch() is false, or batchFor() returns null
+ * for the color, and shapes must be drawn one by one.
+ */
+class ShapeBatcher
+{
+    // fillOval can round a pixel past a shape's bounding box
+    private static final int SLACK = 1;
+
+    private final Graphics2D g;
+    private final List<Batch> open = new ArrayList<Batch>();
+    // batches that have been filled, kept to reuse their arrays
+    private final List<Batch> spare = new ArrayList<Batch>();
+    private final Ellipse2D.Float oval = new Ellipse2D.Float();
+    private final int[] xPoints = new int[3];
+    private final int[] yPoints = new int[3];
+
+    /**
+     * @param g a Graphics for which canBatch() is true
+     */
+    ShapeBatcher(Graphics g) {
+        this.g = (Graphics2D)g;
+    }
+
+    /**
+     * Can shapes drawn with the given Graphics be batched without
+     * changing a single pixel?
+     * @param g
+     * @return
+     */
+    static boolean canBatch(Graphics g) {
+        if (!(g instanceof Graphics2D)) {
+            return false;
+        }
+        Graphics2D g2 = (Graphics2D)g;
+        return AlphaComposite.SrcOver.equals(g2.getComposite())
+                && g2.getRenderingHint(RenderingHints.KEY_ANTIALIASING) != RenderingHints.VALUE_ANTIALIAS_ON;
+    }
+
+    /**
+     * Return the batch to add a shape with the given color and bounds to.
+     * If a shape of that color can't be batched, or the color is null
+     * because the shape can't add itself to a batch, return null; the
+     * caller must then draw the shape itself, straight away.
+     *
+     * Either way, any batch the shape must go on top of has been filled
+     * by the time this returns.
+     */
+    Batch batchFor(Color color, int left, int right, int top, int bottom) {
+        boolean alone = color == null || color.getAlpha() != 255;
+        Batch mine = null;
+        for (int i = open.size() - 1; i >= 0; i--) {
+            Batch b = open.get(i);
+            if (!alone && b.color.equals(color)) {
+                mine = b;
+            } else if (b.overlaps(left, right, top, bottom)) {
+                b.fill();
+                spare.add(open.remove(i));
+            }
+        }
+        if (alone) {
+            return null;
+        }
+        if (mine == null) {
+            mine = spare.isEmpty() ? new Batch() : spare.remove(spare.size() - 1);
+            mine.start(color);
+            open.add(mine);
+        }
+        mine.extend(left, right, top, bottom);
+        return mine;
+    }
+
+    /**
+     * Fill every open batch. Call once all the shapes have been added.
+     */
+    void flush() {
+        for (Batch b : open) {
+            b.fill();
+        }
+        spare.addAll(open);
+        open.clear();
+    }
+
+    /**
+     * Shapes of one color waiting to be filled.
+     */
+    class Batch
+    {
+        private final Path2D.Float ovals = new Path2D.Float(Path2D.WIND_NON_ZERO);
+        // x, y, width, height for each rectangle
+        private int[] rects = new int[4 * 16];
+        private int rectCount;
+        // x0, y0, x1, y1, x2, y2 for each triangle
+        private int[] corners = new int[6 * 16];
+        private int triangleCount;
+        private Color color;
+        // union of the bounds of the shapes in the batch, with SLACK added
+        private int left;
+        private int right;
+        private int top;
+        private int bottom;
+
+        /**
+         * Add the area g.fillRect(x, y, width, height) would fill.
+         */
+        void addRect(int x, int y, int width, int height) {
+            if (4 * rectCount == rects.length) {
+                rects = Arrays.copyOf(rects, 2 * rects.length);
+            }
+            int i = 4 * rectCount++;
+            rects[i] = x;
+            rects[i + 1] = y;
+            rects[i + 2] = width;
+            rects[i + 3] = height;
+        }
+
+        /**
+         * Add the area g.fillOval(x, y, width, height) would fill.
+         */
+        void addOval(int x, int y, int width, int height) {
+            // fillOval fills an Ellipse2D.Float, so this is the same curve
+            oval.setFrame(x, y, width, height);
+            ovals.append(oval, false);
+        }
+
+        /**
+         * Add the triangle g.fillPolygon() would fill with these corners.
+         */
+        void addTriangle(int x0, int y0, int x1, int y1, int x2, int y2) {
+            if (6 * triangleCount == corners.length) {
+                corners = Arrays.copyOf(corners, 2 * corners.length);
+            }
+            int i = 6 * triangleCount++;
+            corners[i] = x0;
+            corners[i + 1] = y0;
+            corners[i + 2] = x1;
+            corners[i + 3] = y1;
+            corners[i + 4] = x2;
+            corners[i + 5] = y2;
+        }
+
+        private void start(Color color) {
+            this.color = color;
+            ovals.reset();
+            rectCount = 0;
+            triangleCount = 0;
+            left = Integer.MAX_VALUE;
+            right = Integer.MIN_VALUE;
+            top = Integer.MAX_VALUE;
+            bottom = Integer.MIN_VALUE;
+        }
+
+        private void extend(int l, int r, int t, int b) {
+            left = Math.min(left, l - SLACK);
+            right = Math.max(right, r + SLACK);
+            top = Math.min(top, t - SLACK);
+            bottom = Math.max(bottom, b + SLACK);
+        }
+
+        private boolean overlaps(int l, int r, int t, int b) {
+            return left <= r + SLACK && right >= l - SLACK && top <= b + SLACK && bottom >= t - SLACK;
+        }
+
+        private void fill() {
+            g.setColor(color);
+            g.fill(ovals);
+            for (int i = 0; i < 4 * rectCount; i += 4) {
+                g.fillRect(rects[i], rects[i + 1], rects[i + 2], rects[i + 3]);
+            }
+            for (int i = 0; i < 6 * triangleCount; i += 6) {
+                xPoints[0] = corners[i];
+                yPoints[0] = corners[i + 1];
+                xPoints[1] = corners[i + 2];
+                yPoints[1] = corners[i + 3];
+                xPoints[2] = corners[i + 4];
+                yPoints[2] = corners[i + 5];
+                g.fillPolygon(xPoints, yPoints, 3);
+            }
+        }
+    }
+}
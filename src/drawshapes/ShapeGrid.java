@@ -0,0 +1,337 @@
+package drawshapes;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A uniform grid that indexes shapes by their bounding boxes, so
+ * the scene can find the shapes near a point or a rectangle without
+ * checking every shape.
+ *
+ * Each shape is stored in every cell its bounding box overlaps. The
+ * grid remembers which cells a shape went into, so a shape that has
+ * been moved or resized can be re-indexed without knowing its old box.
+ *
+ * Shapes also get an increasing order number when they are added, so
+ * query results come back in the same order they are drawn in.
+ *
+ * A shape that would cover more than MAX_CELLS cells is not put in any
+ * cell but in a separate list of oversized shapes, which every query
+ * looks through. Otherwise one huge shape could fill the grid with
+ * millions of cells.
+ */
+class ShapeGrid
+{
+    static final int CELL_SIZE = 64;
+    // shapes covering more cells than this go in the oversized list
+    static final int MAX_CELLS = 64;
+
+    private static final Comparator<Entry> BY_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return Long.compare(a.order, b.order);
+        }
+    };
+
+    private Map<Long, List<Entry>> cells = new HashMap<Long, List<Entry>>();
+    private Map<IShape, Entry> entries = new IdentityHashMap<IShape, Entry>();
+    private List<Entry> oversized = new ArrayList<Entry>();
+    private long nextOrder;
+
+    /**
+     * Where a shape lives in the grid: the range of cells it was
+     * added to and its position in drawing order.
+     */
+    private static class Entry
+    {
+        final IShape shape;
+        final long order;
+        int minCol;
+        int maxCol;
+        int minRow;
+        int maxRow;
+        // in the oversized list rather than in the cells
+        boolean oversized;
+
+        Entry(IShape shape, long order) {
+            this.shape = shape;
+            this.order = order;
+        }
+    }
+
+    /**
+     * Add a shape to the grid after all the shapes already in it.
+     * @param s
+     */
+    void insert(IShape s) {
+        insert(s, nextOrder++);
+    }
+
+    /**
+     * Add a shape back with the drawing order it had before it was removed.
+     * @param s
+     * @param order a value returned by orderOf()
+     */
+    void insert(IShape s, long order) {
+        Entry e = new Entry(s, order);
+        entries.put(s, e);
+        addToCells(e);
+    }
+
+    /**
+     * Return the drawing order of the given shape, or -1 if it isn't in the grid.
+     * @param s
+     * @return
+     */
+    long orderOf(IShape s) {
+        Entry e = entries.get(s);
+        return e == null ? -1 : e.order;
+    }
+
+    /**
+     * Remove a shape from the grid. Does nothing if the shape
+     * was never added.
+     * @param s
+     */
+    void remove(IShape s) {
+        Entry e = entries.remove(s);
+        if (e != null) {
+            removeFromCells(e);
+        }
+    }
+
+    /**
+     * Re-index a shape whose bounding box has changed. The shape
+     * keeps its place in drawing order.
+     * @param s
+     */
+    void update(IShape s) {
+        Entry e = entries.get(s);
+        if (e == null || inSameCells(e)) {
+            return;
+        }
+        removeFromCells(e);
+        addToCells(e);
+    }
+
+    void clear() {
+        cells.clear();
+        entries.clear();
+        oversized.clear();
+        nextOrder = 0;
+    }
+
+    /**
+     * Throw away the current contents and index all of the given shapes,
+     * in order. Faster than inserting them one at a time because the
+     * tables are sized up front.
+     * @param shapes
+     */
+    void bulkLoad(Collection<IShape> shapes) {
+        cells = new HashMap<Long, List<Entry>>(Math.max(16, shapes.size() / 2));
+        entries = new IdentityHashMap<IShape, Entry>(shapes.size());
+        oversized = new ArrayList<Entry>();
+        nextOrder = 0;
+        for (IShape s : shapes) {
+            insert(s);
+        }
+    }
+
+    /**
+     * Re-index every shape whose bounding box has changed, as update()
+     * would, but without looking each one up. When a good part of them
+     * have moved to other cells, the cells are rebuilt from scratch,
+     * which is quicker than moving the shapes one at a time.
+     */
+    void reindex() {
+        List<Entry> moved = new ArrayList<Entry>();
+        for (Entry e : entries.values()) {
+            if (!inSameCells(e)) {
+                moved.add(e);
+            }
+        }
+        // moving a shape costs about three times what adding it to new cells does
+        if (moved.size() > entries.size() / 4) {
+            cells = new HashMap<Long, List<Entry>>(Math.max(16, entries.size() / 2));
+            oversized = new ArrayList<Entry>();
+            for (Entry e : entries.values()) {
+                // the old lists are gone, so the entry is in neither yet
+                e.oversized = false;
+                addToCells(e);
+            }
+            return;
+        }
+        for (Entry e : moved) {
+            removeFromCells(e);
+            addToCells(e);
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Return the shapes whose cells include the given point, in drawing order.
+     * These are only candidates; the caller still has to check each one.
+     * @param p
+     * @return
+     */
+    List<IShape> query(Point p) {
+        List<Entry> cell = cells.get(key(cellOf(p.x), cellOf(p.y)));
+        if (cell == null && oversized.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Entry> found = cell == null ? new ArrayList<Entry>() : new ArrayList<Entry>(cell);
+        for (Entry e : oversized) {
+            if (e.shape.getBoundingBox().contains(p)) {
+                found.add(e);
+            }
+        }
+        return toShapes(found);
+    }
+
+    /**
+     * Return the shapes whose bounding box overlaps the given box, in
+     * drawing order.
+     * @param box
+     * @return
+     */
+    List<IShape> query(BoundingBox box) {
+        return query(box.getLeft(), box.getRight(), box.getTop(), box.getBottom());
+    }
+
+    /**
+     * Is it quicker to query() the given rectangle than to go through
+     * every shape in order? Not when it spans more cells than half of
+     * those holding shapes, as when a zoomed out view shows most of the
+     * scene, since query() has to sort what it finds.
+     */
+    boolean isWorthQuerying(int left, int right, int top, int bottom) {
+        long cols = (long)cellOf(right) - cellOf(left) + 1;
+        long rows = (long)cellOf(bottom) - cellOf(top) + 1;
+        return cols * rows < cells.size() / 2;
+    }
+
+    /**
+     * Return the shapes whose bounding box overlaps the given rectangle,
+     * in drawing order. The rectangle must have left <= right and
+     * top <= bottom.
+     */
+    List<IShape> query(int left, int right, int top, int bottom) {
+        int minCol = cellOf(left);
+        int maxCol = cellOf(right);
+        int minRow = cellOf(top);
+        int maxRow = cellOf(bottom);
+        List<Entry> found = new ArrayList<Entry>();
+        if (((long)maxCol - minCol + 1) * ((long)maxRow - minRow + 1) > cells.size()) {
+            // more cells to look up than there are, so just go through the shapes
+            for (Entry e : entries.values()) {
+                if (e.shape.getBoundingBox().overlaps(left, right, top, bottom)) {
+                    found.add(e);
+                }
+            }
+            return toShapes(found);
+        }
+        for (Entry e : oversized) {
+            if (e.shape.getBoundingBox().overlaps(left, right, top, bottom)) {
+                found.add(e);
+            }
+        }
+        for (int col = minCol; col <= maxCol; col++) {
+            for (int row = minRow; row <= maxRow; row++) {
+                List<Entry> cell = cells.get(key(col, row));
+                if (cell == null) {
+                    continue;
+                }
+                for (Entry e : cell) {
+                    // a shape that covers several cells is only reported from
+                    // the first cell where it and the query overlap
+                    if (col == Math.max(e.minCol, minCol) && row == Math.max(e.minRow, minRow)
+                            && e.shape.getBoundingBox().overlaps(left, right, top, bottom)) {
+                        found.add(e);
+                    }
+                }
+            }
+        }
+        return toShapes(found);
+    }
+
+    private List<IShape> toShapes(List<Entry> found) {
+        Collections.sort(found, BY_ORDER);
+        List<IShape> shapes = new ArrayList<IShape>(found.size());
+        for (Entry e : found) {
+            shapes.add(e.shape);
+        }
+        return shapes;
+    }
+
+    /**
+     * Does the shape's bounding box still cover the cells it was added to?
+     */
+    private boolean inSameCells(Entry e) {
+        BoundingBox box = e.shape.getBoundingBox();
+        return cellOf(box.getLeft()) == e.minCol && cellOf(box.getRight()) == e.maxCol
+                && cellOf(box.getTop()) == e.minRow && cellOf(box.getBottom()) == e.maxRow;
+    }
+
+    private void addToCells(Entry e) {
+        BoundingBox box = e.shape.getBoundingBox();
+        e.minCol = cellOf(box.getLeft());
+        e.maxCol = cellOf(box.getRight());
+        e.minRow = cellOf(box.getTop());
+        e.maxRow = cellOf(box.getBottom());
+        if (((long)e.maxCol - e.minCol + 1) * ((long)e.maxRow - e.minRow + 1) > MAX_CELLS) {
+            e.oversized = true;
+            oversized.add(e);
+            return;
+        }
+        for (int col = e.minCol; col <= e.maxCol; col++) {
+            for (int row = e.minRow; row <= e.maxRow; row++) {
+                Long k = key(col, row);
+                List<Entry> cell = cells.get(k);
+                if (cell == null) {
+                    cell = new ArrayList<Entry>(4);
+                    cells.put(k, cell);
+                }
+                cell.add(e);
+            }
+        }
+    }
+
+    private void removeFromCells(Entry e) {
+        if (e.oversized) {
+            oversized.remove(e);
+            e.oversized = false;
+            return;
+        }
+        for (int col = e.minCol; col <= e.maxCol; col++) {
+            for (int row = e.minRow; row <= e.maxRow; row++) {
+                Long k = key(col, row);
+                List<Entry> cell = cells.get(k);
+                if (cell == null) {
+                    continue;
+                }
+                cell.remove(e);
+                if (cell.isEmpty()) {
+                    cells.remove(k);
+                }
+            }
+        }
+    }
+
+    private static int cellOf(int coord) {
+        return Math.floorDiv(coord, CELL_SIZE);
+    }
+
+    private static long key(int col, int row) {
+        return ((long)col << 32) | (row & 0xffffffffL);
+    }
+}
@@ -0,0 +1,209 @@
+package drawshapes;
+
+import java.awt.geom.AffineTransform;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * An affine transform applied to many shapes at once, on the common
+ * fork/join pool.
+ *
+ * The shapes here are all upright and axis-aligned, and stay that way:
+ * each shape's center goes through the whole transform, but the shape
+ * itself is only stretched by how much the transform stretches each
+ * axis. So a rotation turns the arrangement of the shapes, not the
+ * shapes themselves, and a mirror swaps their positions but doesn't
+ * turn a triangle upside down. Circles and squares keep equal sides,
+ * scaled by the transform's overall scale, so they keep their area
+ * under an uneven scale.
+ *
+ * Geometry is saved and restored as four ints per shape: the anchor
+ * point, as getAnchorPoint() has it, and the two sizes.
+ */
+class ShapeTransform
+{
+    // a range with fewer shapes than this is done on one thread
+    static final int MIN_CHUNK_SIZE = 8192;
+
+    private final double m00;
+    private final double m01;
+    private final double m02;
+    private final double m10;
+    private final double m11;
+    private final double m12;
+    // how much the transform stretches the x and y axes, and areas
+    private final double scaleX;
+    private final double scaleY;
+    private final double scale;
+
+    ShapeTransform(AffineTransform t) {
+        m00 = t.getScaleX();
+        m01 = t.getShearX();
+        m02 = t.getTranslateX();
+        m10 = t.getShearY();
+        m11 = t.getScaleY();
+        m12 = t.getTranslateY();
+        scaleX = Math.hypot(m00, m10);
+        scaleY = Math.hypot(m01, m11);
+        scale = Math.sqrt(Math.abs(t.getDeterminant()));
+    }
+
+    /**
+     * Where the point (x, y) goes, rounded to the nearest pixel, after
+     * taking off half the given size so it can be the left or top edge
+     * of a shape centered there.
+     */
+    int x(double x, double y, int size) {
+        return (int)Math.round(m00 * x + m01 * y + m02 - size / 2.0);
+    }
+
+    int y(double x, double y, int size) {
+        return (int)Math.round(m10 * x + m11 * y + m12 - size / 2.0);
+    }
+
+    int width(int width) {
+        return (int)Math.round(width * scaleX);
+    }
+
+    int height(int height) {
+        return (int)Math.round(height * scaleY);
+    }
+
+    /**
+     * The new size of a shape with equal sides.
+     */
+    int size(int size) {
+        return (int)Math.round(size * scale);
+    }
+
+    /**
+     * Transform every shape in the list, saving each one's old geometry.
+     * Shapes other than the built-in ones are left alone.
+     * @param shapes
+     * @param before gets four ints per shape
+     * @return the area covered by the shapes before and after, or null
+     *      if there are no shapes
+     */
+    BoundingBox apply(final List<IShape> shapes, final int[] before) {
+        return inParallel(shapes.size(), new Range() {
+            @Override
+            public BoundingBox apply(int lo, int hi) {
+                BoundingBox area = null;
+                for (int i = lo; i < hi; i++) {
+                    IShape s = shapes.get(i);
+                    if (s instanceof AbstractShape) {
+                        area = union(area, s.getBoundingBox());
+                        ((AbstractShape)s).getGeometry(before, 4 * i);
+                        ((AbstractShape)s).transform(ShapeTransform.this);
+                        area = union(area, s.getBoundingBox());
+                    }
+                }
+                return area;
+            }
+        });
+    }
+
+    /**
+     * Put back geometry saved by apply().
+     * @param shapes
+     * @param before
+     * @return the area covered by the shapes before and after, or null
+     *      if there are no shapes
+     */
+    static BoundingBox restore(final List<IShape> shapes, final int[] before) {
+        return inParallel(shapes.size(), new Range() {
+            @Override
+            public BoundingBox apply(int lo, int hi) {
+                BoundingBox area = null;
+                for (int i = lo; i < hi; i++) {
+                    IShape s = shapes.get(i);
+                    if (s instanceof AbstractShape) {
+                        area = union(area, s.getBoundingBox());
+                        ((AbstractShape)s).setGeometry(before, 4 * i);
+                        area = union(area, s.getBoundingBox());
+                    }
+                }
+                return area;
+            }
+        });
+    }
+
+    /**
+     * Work on part of a list of shapes.
+     */
+    interface Range
+    {
+        /**
+         * Do the shapes from lo up to hi, and return the area they
+         * covered before and after, or null if none changed.
+         */
+        BoundingBox apply(int lo, int hi);
+    }
+
+    /**
+     * Run the range over n shapes, split into chunks that run on the
+     * common pool if there are enough shapes to be worth it. The ranges
+     * must not touch the same shape twice.
+     * @return the union of what the ranges returned
+     */
+    static BoundingBox inParallel(int n, Range range) {
+        if (n < 2 * MIN_CHUNK_SIZE) {
+            return range.apply(0, n);
+        }
+        return ForkJoinPool.commonPool().invoke(new ChunkTask(range, 0, n));
+    }
+
+    /**
+     * Return a box covering both boxes, reusing a if it isn't null.
+     * b is never changed.
+     */
+    static BoundingBox union(BoundingBox a, BoundingBox b) {
+        if (b == null) {
+            return a;
+        }
+        if (a == null) {
+            return new BoundingBox(b.getLeft(), b.getRight(), b.getTop(), b.getBottom());
+        }
+        return union(a, b.getLeft(), b.getRight(), b.getTop(), b.getBottom());
+    }
+
+    static BoundingBox union(BoundingBox a, int left, int right, int top, int bottom) {
+        if (a == null) {
+            return new BoundingBox(left, right, top, bottom);
+        }
+        a.set(Math.min(a.getLeft(), left), Math.max(a.getRight(), right),
+                Math.min(a.getTop(), top), Math.max(a.getBottom(), bottom));
+        return a;
+    }
+
+    /**
+     * Runs the range over [lo, hi), splitting it in half until it is
+     * small enough to do in one go.
+     */
+    @SuppressWarnings("serial")
+    private static class ChunkTask extends RecursiveTask<BoundingBox>
+    {
+        private final Range range;
+        private final int lo;
+        private final int hi;
+
+        ChunkTask(Range range, int lo, int hi) {
+            this.range = range;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected BoundingBox compute() {
+            if (hi - lo <= MIN_CHUNK_SIZE) {
+                return range.apply(lo, hi);
+            }
+            int mid = (lo + hi) >>> 1;
+            ChunkTask first = new ChunkTask(range, lo, mid);
+            first.fork();
+            BoundingBox second = new ChunkTask(range, mid, hi).compute();
+            return union(first.join(), second);
+        }
+    }
+}
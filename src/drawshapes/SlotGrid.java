@@ -0,0 +1,193 @@
+package drawshapes;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A uniform grid over the slots of a CompactShapeStore, the same idea as
+ * ShapeGrid but keyed by slot number, so it needs no object per shape.
+ *
+ * Each slot is stored in every cell its bounding box overlaps, and the
+ * range of cells it went into is remembered per slot so it can be moved
+ * without knowing its old box. Slots that would cover more than
+ * ShapeGrid.MAX_CELLS cells go in a separate oversized list that every
+ * query returns.
+ *
+ * Queries return candidate slots in increasing order, which is drawing
+ * order; the store still has to check each one's box.
+ */
+class SlotGrid
+{
+    private final Map<Long, Cell> cells = new HashMap<Long, Cell>();
+    private final Cell oversized = new Cell();
+    // the cells each slot was added to; minCol is unused for oversized slots
+    private int[] minCol = new int[16];
+    private int[] maxCol = new int[16];
+    private int[] minRow = new int[16];
+    private int[] maxRow = new int[16];
+    private boolean[] isOversized = new boolean[16];
+
+    /**
+     * The slots in one cell, in no particular order.
+     */
+    private static class Cell
+    {
+        int[] slots = new int[4];
+        int size;
+
+        void add(int slot) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+            }
+            slots[size++] = slot;
+        }
+
+        void remove(int slot) {
+            for (int i = 0; i < size; i++) {
+                if (slots[i] == slot) {
+                    slots[i] = slots[--size];
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a slot with the given bounds. Slots must be added in order,
+     * each one after the last.
+     */
+    void add(int slot, int left, int right, int top, int bottom) {
+        if (slot >= minCol.length) {
+            int n = Math.max(slot + 1, minCol.length * 2);
+            minCol = Arrays.copyOf(minCol, n);
+            maxCol = Arrays.copyOf(maxCol, n);
+            minRow = Arrays.copyOf(minRow, n);
+            maxRow = Arrays.copyOf(maxRow, n);
+            isOversized = Arrays.copyOf(isOversized, n);
+        }
+        minCol[slot] = cellOf(left);
+        maxCol[slot] = cellOf(right);
+        minRow[slot] = cellOf(top);
+        maxRow[slot] = cellOf(bottom);
+        if (((long)maxCol[slot] - minCol[slot] + 1) * ((long)maxRow[slot] - minRow[slot] + 1)
+                > ShapeGrid.MAX_CELLS) {
+            isOversized[slot] = true;
+            oversized.add(slot);
+            return;
+        }
+        isOversized[slot] = false;
+        for (int col = minCol[slot]; col <= maxCol[slot]; col++) {
+            for (int row = minRow[slot]; row <= maxRow[slot]; row++) {
+                Long k = key(col, row);
+                Cell cell = cells.get(k);
+                if (cell == null) {
+                    cell = new Cell();
+                    cells.put(k, cell);
+                }
+                cell.add(slot);
+            }
+        }
+    }
+
+    /**
+     * Re-index a slot whose bounds have changed.
+     */
+    void update(int slot, int left, int right, int top, int bottom) {
+        if (!isOversized[slot] && cellOf(left) == minCol[slot] && cellOf(right) == maxCol[slot]
+                && cellOf(top) == minRow[slot] && cellOf(bottom) == maxRow[slot]) {
+            return;
+        }
+        remove(slot);
+        add(slot, left, right, top, bottom);
+    }
+
+    private void remove(int slot) {
+        if (isOversized[slot]) {
+            oversized.remove(slot);
+            return;
+        }
+        for (int col = minCol[slot]; col <= maxCol[slot]; col++) {
+            for (int row = minRow[slot]; row <= maxRow[slot]; row++) {
+                Long k = key(col, row);
+                Cell cell = cells.get(k);
+                if (cell == null) {
+                    continue;
+                }
+                cell.remove(slot);
+                if (cell.size == 0) {
+                    cells.remove(k);
+                }
+            }
+        }
+    }
+
+    /**
+     * Is it quicker to query() the given rectangle than to go through
+     * every slot in order? The same test as ShapeGrid.isWorthQuerying().
+     */
+    boolean isWorthQuerying(int left, int right, int top, int bottom) {
+        long cols = (long)cellOf(right) - cellOf(left) + 1;
+        long rows = (long)cellOf(bottom) - cellOf(top) + 1;
+        return cols * rows < cells.size() / 2;
+    }
+
+    /**
+     * Return the slots whose cells include the given point, plus the
+     * oversized slots, in increasing order.
+     */
+    int[] query(int px, int py) {
+        Cell cell = cells.get(key(cellOf(px), cellOf(py)));
+        int n = cell == null ? 0 : cell.size;
+        int[] found = Arrays.copyOf(oversized.slots, oversized.size + n);
+        if (cell != null) {
+            System.arraycopy(cell.slots, 0, found, oversized.size, n);
+        }
+        Arrays.sort(found);
+        return found;
+    }
+
+    /**
+     * Return the slots whose cells overlap the given rectangle, plus the
+     * oversized slots, in increasing order and each once. The rectangle
+     * must have left <= right and top <= bottom, and should pass
+     * isWorthQuerying().
+     */
+    int[] query(int left, int right, int top, int bottom) {
+        int minC = cellOf(left);
+        int maxC = cellOf(right);
+        int minR = cellOf(top);
+        int maxR = cellOf(bottom);
+        Cell found = new Cell();
+        for (int i = 0; i < oversized.size; i++) {
+            found.add(oversized.slots[i]);
+        }
+        for (int col = minC; col <= maxC; col++) {
+            for (int row = minR; row <= maxR; row++) {
+                Cell cell = cells.get(key(col, row));
+                if (cell == null) {
+                    continue;
+                }
+                for (int i = 0; i < cell.size; i++) {
+                    int slot = cell.slots[i];
+                    // a slot that covers several cells is only reported from
+                    // the first cell where it and the query overlap
+                    if (col == Math.max(minCol[slot], minC) && row == Math.max(minRow[slot], minR)) {
+                        found.add(slot);
+                    }
+                }
+            }
+        }
+        int[] slots = Arrays.copyOf(found.slots, found.size);
+        Arrays.sort(slots);
+        return slots;
+    }
+
+    private static int cellOf(int coord) {
+        return Math.floorDiv(coord, ShapeGrid.CELL_SIZE);
+    }
+
+    private static long key(int col, int row) {
+        return ((long)col << 32) | (row & 0xffffffffL);
+    }
+}
@@ -20,6 +20,14 @@ public class Square extends Rectangle
                 selected);
     }
 
+    @Override
+    void transform(ShapeTransform t) {
+        double centerX = anchorPoint.x + width / 2.0;
+        double centerY = anchorPoint.y + width / 2.0;
+        int length = t.size(width);
+        setGeometry(t.x(centerX, centerY, length), t.y(centerX, centerY, length), length, length);
+    }
+
     @Override
     public Square copy(){
         return new Square(color, anchorPoint.x+width/2, anchorPoint.y+width/2, width);
@@ -29,5 +37,6 @@ public class Square extends Rectangle
     public void expand(int factor){
         width += factor;
         height += factor;
+        setBoundingBox(anchorPoint.x, anchorPoint.x+width, anchorPoint.y, anchorPoint.y+height);
     }
 }
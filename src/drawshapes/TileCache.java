@@ -0,0 +1,129 @@
+package drawshapes;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the unselected shapes of a scene rendered into fixed-size
+ * off-screen tiles, so a repaint is mostly a few drawImage calls.
+ *
+ * A tile is only re-rendered after something inside it changes, which
+ * the panel reports through invalidate(). When the tiles use more
+ * memory than the budget allows, the least recently drawn ones are
+ * thrown away and rendered again the next time they're needed.
+ */
+class TileCache
+{
+    static final int DEFAULT_TILE_SIZE = 256;
+
+    private final int tileSize;
+    private final long budgetBytes;
+    private final long tileBytes;
+    // access order, so iteration starts at the least recently used tile
+    private final LinkedHashMap<Long, BufferedImage> tiles =
+            new LinkedHashMap<Long, BufferedImage>(16, 0.75f, true);
+
+    /**
+     * @param tileSize width and height of a tile in pixels
+     * @param budgetBytes how much memory the tiles may use
+     */
+    TileCache(int tileSize, long budgetBytes) {
+        this.tileSize = tileSize;
+        this.budgetBytes = budgetBytes;
+        // TYPE_INT_RGB uses four bytes per pixel
+        this.tileBytes = 4L * tileSize * tileSize;
+    }
+
+    /**
+     * Paint the unselected shapes of the scene that fall within the
+     * clip of the given Graphics, rendering any tiles that are missing.
+     * @param g
+     * @param scene
+     * @param background the color behind the shapes
+     * @param width the area to paint if the Graphics has no clip
+     * @param height
+     */
+    void paint(Graphics g, Scene scene, Color background, int width, int height) {
+        java.awt.Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = new java.awt.Rectangle(0, 0, width, height);
+        }
+        int minCol = Math.floorDiv(clip.x, tileSize);
+        int maxCol = Math.floorDiv(clip.x + clip.width - 1, tileSize);
+        int minRow = Math.floorDiv(clip.y, tileSize);
+        int maxRow = Math.floorDiv(clip.y + clip.height - 1, tileSize);
+        for (int col = minCol; col <= maxCol; col++) {
+            for (int row = minRow; row <= maxRow; row++) {
+                Long k = key(col, row);
+                BufferedImage tile = tiles.get(k);
+                if (tile == null) {
+                    tile = render(scene, background, col, row);
+                    tiles.put(k, tile);
+                    evict();
+                }
+                g.drawImage(tile, col * tileSize, row * tileSize, null);
+            }
+        }
+    }
+
+    /**
+     * Throw away every tile that overlaps the given area.
+     * @param r
+     */
+    void invalidate(java.awt.Rectangle r) {
+        long minCol = Math.floorDiv((long)r.x, tileSize);
+        long maxCol = Math.floorDiv((long)r.x + r.width - 1, tileSize);
+        long minRow = Math.floorDiv((long)r.y, tileSize);
+        long maxRow = Math.floorDiv((long)r.y + r.height - 1, tileSize);
+        for (Iterator<Long> it = tiles.keySet().iterator(); it.hasNext(); ) {
+            long k = it.next();
+            int col = (int)(k >> 32);
+            int row = (int)k;
+            if (col >= minCol && col <= maxCol && row >= minRow && row <= maxRow) {
+                it.remove();
+            }
+        }
+    }
+
+    void invalidateAll() {
+        tiles.clear();
+    }
+
+    /**
+     * The number of tiles currently held.
+     * @return
+     */
+    int size() {
+        return tiles.size();
+    }
+
+    private BufferedImage render(Scene scene, Color background, int col, int row) {
+        BufferedImage tile = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = tile.createGraphics();
+        g.setColor(background);
+        g.fillRect(0, 0, tileSize, tileSize);
+        g.translate(-col * tileSize, -row * tileSize);
+        g.setClip(col * tileSize, row * tileSize, tileSize, tileSize);
+        scene.drawUnselected(g);
+        g.dispose();
+        return tile;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Long, BufferedImage>> it = tiles.entrySet().iterator();
+        // always keep the tile that was just rendered
+        while (tiles.size() > 1 && tiles.size() * tileBytes > budgetBytes) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static long key(int col, int row) {
+        return ((long)col << 32) | (row & 0xffffffffL);
+    }
+}
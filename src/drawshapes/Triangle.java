@@ -12,7 +12,7 @@ public class Triangle extends AbstractShape {
 
 	public Triangle(Color color, Point center, int base, int height) {
 		super(new Point(center.x, center.y));
-        setBoundingBox(center.x+base/2, center.x-base/2, center.y+height/2, center.y-height/2);
+        setBoundingBox(center.x-base/2, center.x+base/2, center.y-height/2, center.y+height/2);
         this.color=color;
         this.base=base;
         this.height=height;
@@ -32,13 +32,57 @@ public class Triangle extends AbstractShape {
         int[] yPoints = {topCornerY,bottomCornerY,bottomCornerY};
         int[] xPoints = {topCornerX,leftCornerX,rightCornerX};
 		if (isSelected()){
-            g.setColor(this.color.darker());
+            g.setColor(Util.darker(color));
         } else {
             g.setColor(getColor());
         }
         g.fillPolygon(xPoints, yPoints, 3);
     }
     
+    @Override
+    Outline outline() {
+        // the same corners as draw()
+        int bottomCornerY = anchorPoint.y+height/2;
+        int topCornerY = anchorPoint.y-height/2;
+        return Outline.triangle(anchorPoint.x, topCornerY,
+                anchorPoint.x+base/2, bottomCornerY, anchorPoint.x-base/2, bottomCornerY);
+    }
+    
+    @Override
+    void addTo(ShapeBatcher.Batch batch) {
+        // the same corners as draw()
+        int bottomCornerY = anchorPoint.y+height/2;
+        int topCornerY = anchorPoint.y-height/2;
+        batch.addTriangle(anchorPoint.x, topCornerY,
+                anchorPoint.x+base/2, bottomCornerY, anchorPoint.x-base/2, bottomCornerY);
+    }
+    
+    @Override
+    void getGeometry(int[] geometry, int i) {
+        geometry[i] = anchorPoint.x;
+        geometry[i + 1] = anchorPoint.y;
+        geometry[i + 2] = base;
+        geometry[i + 3] = height;
+    }
+
+    @Override
+    void setGeometry(int[] geometry, int i) {
+        setGeometry(geometry[i], geometry[i + 1], geometry[i + 2], geometry[i + 3]);
+    }
+
+    @Override
+    void transform(ShapeTransform t) {
+        setGeometry(t.x(anchorPoint.x, anchorPoint.y, 0), t.y(anchorPoint.x, anchorPoint.y, 0),
+                t.width(base), t.height(height));
+    }
+
+    private void setGeometry(int x, int y, int base, int height) {
+        anchorPoint.setLocation(x, y);
+        this.base = base;
+        this.height = height;
+        setBoundingBox(anchorPoint.x-base/2, anchorPoint.x+base/2, anchorPoint.y-height/2, anchorPoint.y+height/2);
+    }
+    
     @Override
 	public void setAnchorPoint(Point point) {
 		
@@ -63,6 +107,7 @@ public class Triangle extends AbstractShape {
     public void expand(int factor){
         base += factor;
         height += factor;
+        setBoundingBox(anchorPoint.x-base/2, anchorPoint.x+base/2, anchorPoint.y-height/2, anchorPoint.y+height/2);
     }
 
 }
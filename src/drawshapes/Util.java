@@ -1,6 +1,7 @@
 package drawshapes;
 
 import java.awt.Color;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Utilities class containing methods to convert
@@ -12,9 +13,25 @@ import java.awt.Color;
  */
 public class Util
 {
+    // darker shades handed out by darker(), so drawing doesn't allocate them
+    private static final ConcurrentHashMap<Color, Color> DARKER = new ConcurrentHashMap<Color, Color>();
+
     // private constructor
     private Util() {}
 
+    /**
+     * Return color.darker(), the shade selected shapes are drawn in.
+     * The shade is only worked out once for each color.
+     */
+    public static Color darker(Color color) {
+        Color d = DARKER.get(color);
+        if (d == null) {
+            d = color.darker();
+            DARKER.putIfAbsent(color, d);
+        }
+        return d;
+    }
+
     public static String colorToString(Color color) {
         if (color == Color.RED) {
             return "RED";
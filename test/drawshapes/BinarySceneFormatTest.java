@@ -0,0 +1,178 @@
+package drawshapes;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BinarySceneFormatTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Every type, color and selected state comes back as it was saved,
+     * in order, from either kind of scene.
+     */
+    @Test
+    public void roundTripKeepsEveryShape() throws IOException {
+        for (boolean compact : new boolean[] {false, true}) {
+            Scene scene = new Scene(compact);
+            for (IShape s : someShapes()) {
+                scene.addShape(s);
+            }
+            File file = folder.newFile("scene-" + compact + BinarySceneFormat.EXTENSION);
+            scene.saveToFile(file);
+            assertTrue(BinarySceneFormat.isBinary(file));
+            assertEquals(BinarySceneFormat.HEADER_SIZE + BinarySceneFormat.RECORD_SIZE * scene.size(),
+                    file.length());
+
+            Scene loaded = new Scene(compact);
+            loaded.loadFromFile(file);
+            assertEquals(scene.toString(), loaded.toString());
+        }
+    }
+
+    @Test
+    public void emptySceneRoundTrips() throws IOException {
+        File file = folder.newFile("empty" + BinarySceneFormat.EXTENSION);
+        new Scene().saveToFile(file);
+        assertEquals(BinarySceneFormat.HEADER_SIZE, file.length());
+        assertEquals(0, BinarySceneFormat.read(file).size());
+    }
+
+    @Test
+    public void rejectsBadMagic() throws IOException {
+        File file = savedScene();
+        overwriteInt(file, 0, 0x44534841);
+        assertRejected(file, 0);
+    }
+
+    @Test
+    public void rejectsShortFile() throws IOException {
+        File file = folder.newFile("short" + BinarySceneFormat.EXTENSION);
+        Files.write(file.toPath(), new byte[] {0x44, 0x53, 0x48, 0x42, 0, 0, 0, 1});
+        assertRejected(file, 0);
+    }
+
+    @Test
+    public void rejectsBadVersion() throws IOException {
+        File file = savedScene();
+        overwriteInt(file, 4, BinarySceneFormat.VERSION + 1);
+        assertRejected(file, 0);
+    }
+
+    @Test
+    public void rejectsCountThatDoesNotMatchTheRecords() throws IOException {
+        File file = savedScene();
+        int count = (int)((file.length() - BinarySceneFormat.HEADER_SIZE) / BinarySceneFormat.RECORD_SIZE);
+        overwriteInt(file, 12, count + 1);
+        assertRejected(file, 0);
+        overwriteInt(file, 8, -1);
+        overwriteInt(file, 12, -1);
+        assertRejected(file, 0);
+    }
+
+    /**
+     * A bad record is reported by its number, starting at 1.
+     */
+    @Test
+    public void rejectsBadRecord() throws IOException {
+        File file = savedScene();
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            // the color byte of the third record
+            out.seek(BinarySceneFormat.HEADER_SIZE + 2 * BinarySceneFormat.RECORD_SIZE + 1);
+            out.writeByte(9);
+        }
+        assertRejected(file, 3);
+    }
+
+    /**
+     * When a write fails part way, the file keeps its old contents and
+     * the temporary file is deleted.
+     */
+    @Test
+    public void failedWriteLeavesOldFileAndNoTempFile() throws IOException {
+        File file = savedScene();
+        byte[] before = Files.readAllBytes(file.toPath());
+        List<IShape> shapes = someShapes();
+        // the format only has red, blue and green
+        shapes.add(shapes.size() / 2, new Circle(Color.MAGENTA, new Point(1, 1), 2));
+        try {
+            BinarySceneFormat.write(file, shapes, shapes.size(), null);
+            fail("wrote a color the format doesn't have");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        assertArrayEquals(before, Files.readAllBytes(file.toPath()));
+        assertEquals(Arrays.asList(file.getName()), Arrays.asList(folder.getRoot().list()));
+    }
+
+    private static List<IShape> someShapes() {
+        Random random = new Random(11);
+        Color[] colors = {Color.RED, Color.BLUE, Color.GREEN};
+        List<IShape> shapes = new ArrayList<IShape>();
+        for (int i = 0; i < 200; i++) {
+            Point p = new Point(random.nextInt(2000) - 500, random.nextInt(2000) - 500);
+            Color color = colors[random.nextInt(colors.length)];
+            int a = 2 + 2 * random.nextInt(50);
+            int b = 2 + 2 * random.nextInt(50);
+            IShape s;
+            switch (i % 4) {
+            case 0:
+                s = new Square(color, p.x, p.y, a);
+                break;
+            case 1:
+                s = new Circle(color, p, a);
+                break;
+            case 2:
+                s = new Rectangle(p, a, b, color);
+                break;
+            default:
+                s = new Triangle(color, p, a, b);
+                break;
+            }
+            s.setSelected(random.nextInt(5) == 0);
+            shapes.add(s);
+        }
+        return shapes;
+    }
+
+    private File savedScene() throws IOException {
+        File file = folder.newFile("scene" + BinarySceneFormat.EXTENSION);
+        List<IShape> shapes = someShapes();
+        BinarySceneFormat.write(file, shapes, shapes.size(), null);
+        return file;
+    }
+
+    private static void overwriteInt(File file, long offset, int value) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.seek(offset);
+            out.writeInt(value);
+        }
+    }
+
+    private static void assertRejected(File file, long line) throws IOException {
+        try {
+            BinarySceneFormat.read(file);
+            fail("read a bad file");
+        } catch (SceneFormatException e) {
+            assertEquals(line, e.getLine());
+        }
+    }
+}
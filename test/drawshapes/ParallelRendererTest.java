@@ -0,0 +1,171 @@
+package drawshapes;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ParallelRendererTest
+{
+    private static final int WIDTH = 1200;
+    private static final int HEIGHT = 900;
+    private static final String[] COLORS = {"RED", "BLUE", "GREEN"};
+
+    private static File file;
+
+    /**
+     * A scene file of overlapping shapes of every type, big enough that
+     * the tiles are busy at the same time.
+     */
+    @BeforeClass
+    public static void writeScene() throws IOException {
+        file = File.createTempFile("render", ".txt");
+        Random random = new Random(7);
+        try (BufferedWriter out = Files.newBufferedWriter(file.toPath(), StandardCharsets.US_ASCII)) {
+            for (int i = 0; i < 60000; i++) {
+                int x = random.nextInt(WIDTH + 100) - 50;
+                int y = random.nextInt(HEIGHT + 100) - 50;
+                int a = 1 + random.nextInt(40);
+                int b = 1 + random.nextInt(40);
+                String color = COLORS[random.nextInt(COLORS.length)];
+                switch (i % 4) {
+                case 0:
+                    out.write("SQUARE " + x + " " + y + " " + a + " " + color);
+                    break;
+                case 1:
+                    out.write("CIRCLE " + x + " " + y + " " + a + " " + color);
+                    break;
+                case 2:
+                    out.write("RECTANGLE " + x + " " + y + " " + a + " " + b + " " + color);
+                    break;
+                default:
+                    out.write("TRIANGLE " + x + " " + y + " " + a + " " + b + " " + color);
+                    break;
+                }
+                out.newLine();
+            }
+        }
+    }
+
+    @AfterClass
+    public static void deleteScene() throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Test
+    public void tilesMatchOneDrawInListMode() throws Exception {
+        checkTiles(false);
+    }
+
+    /**
+     * The first frame after a load, when nothing has queried the compact
+     * store yet, is drawn by all the tiles at once.
+     */
+    @Test
+    public void tilesMatchOneDrawInCompactMode() throws Exception {
+        checkTiles(true);
+    }
+
+    private void checkTiles(boolean compact) throws Exception {
+        ParallelRenderer renderer = new ParallelRenderer(8, 64);
+        try {
+            for (int run = 0; run < 3; run++) {
+                Scene scene = new Scene(compact);
+                scene.loadFromFile(file);
+                BufferedImage tiled = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+                renderer.render(scene, tiled, Color.WHITE);
+                BufferedImage expected = BatchRenderer.render(scene, WIDTH, HEIGHT);
+                assertEquals("pixels that differ", 0, countDifferences(expected, tiled));
+            }
+        } finally {
+            renderer.shutdown();
+        }
+    }
+
+    /**
+     * Rendering part of the image, with tiles that don't fit it evenly,
+     * draws what one clipped draw does inside the area and leaves every
+     * pixel outside it alone.
+     */
+    @Test
+    public void areaMatchesOneClippedDraw() throws Exception {
+        java.awt.Rectangle area = new java.awt.Rectangle(130, 70, 333, 201);
+        ParallelRenderer renderer = new ParallelRenderer(4, 64);
+        try {
+            for (boolean compact : new boolean[] {false, true}) {
+                Scene scene = new Scene(compact);
+                scene.loadFromFile(file);
+                BufferedImage tiled = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+                BufferedImage expected = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+                for (BufferedImage image : new BufferedImage[] {tiled, expected}) {
+                    Graphics2D g = image.createGraphics();
+                    g.setColor(Color.MAGENTA);
+                    g.fillRect(0, 0, WIDTH, HEIGHT);
+                    g.dispose();
+                }
+                renderer.render(scene, tiled, Color.WHITE, area);
+                Graphics2D g = expected.createGraphics();
+                g.clipRect(area.x, area.y, area.width, area.height);
+                g.setColor(Color.WHITE);
+                g.fillRect(area.x, area.y, area.width, area.height);
+                scene.draw(g);
+                g.dispose();
+                assertEquals("pixels that differ", 0, countDifferences(expected, tiled));
+            }
+        } finally {
+            renderer.shutdown();
+        }
+    }
+
+    /**
+     * A published snapshot, which draws its segments into one batcher
+     * and skips the segments outside the clip, draws what the scene
+     * does, for the whole image and for small clips.
+     */
+    @Test
+    public void snapshotDrawsLikeTheScene() throws Exception {
+        java.awt.Rectangle[] clips = {null, new java.awt.Rectangle(0, 0, 100, 80),
+                new java.awt.Rectangle(500, 300, 37, 250), new java.awt.Rectangle(WIDTH - 10, HEIGHT - 10, 10, 10)};
+        for (boolean compact : new boolean[] {false, true}) {
+            Scene scene = new Scene(compact);
+            scene.loadFromFile(file);
+            SceneSnapshot snapshot = scene.publish();
+            for (java.awt.Rectangle clip : clips) {
+                BufferedImage expected = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+                BufferedImage actual = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+                Graphics2D g = expected.createGraphics();
+                g.setClip(clip);
+                scene.draw(g);
+                g.dispose();
+                g = actual.createGraphics();
+                g.setClip(clip);
+                snapshot.draw(g);
+                g.dispose();
+                assertEquals("pixels that differ", 0, countDifferences(expected, actual));
+            }
+        }
+    }
+
+    static int countDifferences(BufferedImage a, BufferedImage b) {
+        int differ = 0;
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                if (a.getRGB(x, y) != b.getRGB(x, y)) {
+                    differ++;
+                }
+            }
+        }
+        return differ;
+    }
+}
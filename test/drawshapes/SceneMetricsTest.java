@@ -0,0 +1,46 @@
+package drawshapes;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+
+public class SceneMetricsTest
+{
+    /**
+     * The drawn count for a frame is the scene's own count, so each
+     * shape drawn counts once, however many passes the frame takes.
+     */
+    @Test
+    public void shapesDrawnCountOncePerFrame() {
+        for (boolean compact : new boolean[] {false, true}) {
+            Scene scene = new Scene(compact);
+            SceneMetrics metrics = new SceneMetrics(scene);
+            scene.setMetrics(metrics);
+            for (int i = 0; i < 10; i++) {
+                scene.addShape(new Circle(Color.RED, new Point(20 + 40 * i, 20), 10));
+            }
+            scene.setSelected(scene.select(new Point(20, 20)).get(0), true);
+            // and one off the image
+            scene.addShape(new Circle(Color.RED, new Point(1000, 1000), 10));
+            BufferedImage image = new BufferedImage(400, 100, BufferedImage.TYPE_INT_RGB);
+
+            for (int frame = 0; frame < 2; frame++) {
+                Graphics2D g = image.createGraphics();
+                g.setClip(0, 0, 400, 100);
+                scene.startFrame();
+                // the two passes the panel makes when it caches the unselected shapes
+                scene.drawUnselected(g);
+                scene.drawSelected(g);
+                metrics.endFrame(1000);
+                g.dispose();
+                assertEquals(10, metrics.getShapesDrawnLastFrame());
+                assertEquals(11, metrics.getSceneSize());
+            }
+        }
+    }
+}
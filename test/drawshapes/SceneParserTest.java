@@ -0,0 +1,190 @@
+package drawshapes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Scanner;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SceneParserTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Files written by toString(), and messier ones with mixed
+     * whitespace and stray words, give the same shapes as the Scanner
+     * loop that loadFromFile() used before.
+     */
+    @Test
+    public void readsWhatScannerRead() throws IOException {
+        Scene scene = new Scene();
+        scene.addShape(new Square(Color.RED, 10, 20, 30));
+        scene.addShape(new Circle(Color.BLUE, new Point(-5, 7), 12));
+        scene.addShape(new Rectangle(new Point(100, 200), 40, 60, Color.GREEN));
+        IShape selected = new Triangle(Color.RED, new Point(0, 0), 8, 6);
+        selected.setSelected(true);
+        scene.addShape(selected);
+        assertSameAsScanner(scene.toString());
+        assertSameAsScanner("SQUARE 1 2 3 RED\r\n\tcircle   4 5 6 BLUE true\n\n"
+                + "Rectangle -7 +8 9 10 GREEN TRIANGLE 11\n12 13 14 RED\f extra words 15\n");
+        assertSameAsScanner("");
+        assertSameAsScanner("   \n\n");
+    }
+
+    @Test
+    public void keywordsAreCaseInsensitive() throws IOException {
+        List<IShape> shapes = parse("square 1 2 3 RED\nCiRcLe 4 5 6 BLUE\nrectANGLE 7 8 9 10 GREEN\ntriangle 11 12 13 14 RED\n");
+        assertEquals(4, shapes.size());
+        assertTrue(shapes.get(0) instanceof Square);
+        assertTrue(shapes.get(1) instanceof Circle);
+        assertTrue(shapes.get(2) instanceof Rectangle);
+        assertTrue(shapes.get(3) instanceof Triangle);
+        // colors are matched exactly, as Util.stringToColor() did
+        assertRejected("SQUARE 1 2 3 red\n", 1);
+    }
+
+    /**
+     * Errors give the line the bad word is on, counting from 1, or the
+     * line the file ends on if it ends in the middle of a shape.
+     */
+    @Test
+    public void errorsGiveTheLineNumber() throws IOException {
+        assertRejected("SQUARE 1 2 x RED\n", 1);
+        assertRejected("SQUARE 1 2 3 RED\n\nCIRCLE 1 2 3 PINK\n", 3);
+        assertRejected("SQUARE 1 2 3 RED\r\nRECTANGLE 1 2 3 4 PURPLE\r\n", 2);
+        assertRejected("SQUARE 1 2 3 RED\r\nRECTANGLE 1 2 3", 2);
+        assertRejected("SQUARE 1 2 3 RED\nTRIANGLE 1\n2 99999999999 4 RED\n", 3);
+        assertRejected("SQUARE 1 2 - RED\n", 1);
+        assertRejected("CIRCLE 1 2 3\n\n", 3);
+    }
+
+    @Test
+    public void acceptsTheWholeIntRange() throws IOException {
+        List<IShape> shapes = parse("SQUARE -2147483648 2147483647 0 RED\n");
+        assertEquals("SQUARE -2147483648 2147483647 0 RED false\n", text(shapes));
+        assertRejected("SQUARE 2147483648 0 0 RED\n", 1);
+        assertRejected("SQUARE -2147483649 0 0 RED\n", 1);
+    }
+
+    /**
+     * Parsing a file big enough to split gives the same shapes as
+     * parsing it on one thread, and still reports the right line.
+     */
+    @Test
+    public void parallelParseMatchesParse() throws IOException {
+        File file = folder.newFile("big.txt");
+        Random random = new Random(13);
+        int lines = 0;
+        try (BufferedWriter out = Files.newBufferedWriter(file.toPath(), StandardCharsets.US_ASCII)) {
+            while (file.length() < 4 * SceneParser.MIN_CHUNK_SIZE) {
+                for (int i = 0; i < 1000; i++) {
+                    out.write("CIRCLE " + random.nextInt(5000) + " " + random.nextInt(5000) + " "
+                            + random.nextInt(50) + " BLUE false\n");
+                    lines++;
+                }
+                out.flush();
+            }
+        }
+        assertEquals(text(SceneParser.parse(file)), text(SceneParser.parseParallel(file)));
+        assertEquals(lines, SceneParser.parseParallel(file).size());
+
+        Files.write(file.toPath(), "SQUARE 1 2 3 BLACK\n".getBytes(StandardCharsets.US_ASCII),
+                java.nio.file.StandardOpenOption.APPEND);
+        try {
+            SceneParser.parseParallel(file);
+            fail("parsed a bad color");
+        } catch (SceneFormatException e) {
+            assertEquals(lines + 1, e.getLine());
+        }
+    }
+
+    private void assertSameAsScanner(String content) throws IOException {
+        File file = write(content);
+        assertEquals(text(scannerParse(file)), text(SceneParser.parse(file)));
+    }
+
+    private void assertRejected(String content, long line) throws IOException {
+        try {
+            parse(content);
+            fail("parsed " + content);
+        } catch (SceneFormatException e) {
+            assertEquals(line, e.getLine());
+        }
+    }
+
+    private List<IShape> parse(String content) throws IOException {
+        return SceneParser.parse(write(content));
+    }
+
+    private File write(String content) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    /**
+     * The shapes as text, the way toString() writes them.
+     */
+    private static String text(List<IShape> shapes) throws IOException {
+        CompactShapeStore store = new CompactShapeStore();
+        store.addAll(shapes);
+        StringWriter text = new StringWriter();
+        try (SceneWriter out = new SceneWriter(text)) {
+            out.write(store, null);
+        }
+        return text.toString();
+    }
+
+    /**
+     * The Scanner loop loadFromFile() used before SceneParser.
+     */
+    private static List<IShape> scannerParse(File file) throws IOException {
+        List<IShape> loaded = new ArrayList<IShape>();
+        try (Scanner scan = new Scanner(new FileInputStream(file))) {
+            while (scan.hasNext()) {
+                String shape = scan.next();
+                if (shape.equalsIgnoreCase("SQUARE")) {
+                    int x = scan.nextInt();
+                    int y = scan.nextInt();
+                    int length = scan.nextInt();
+                    loaded.add(new Square(Util.stringToColor(scan.next()), x, y, length));
+                } else if (shape.equalsIgnoreCase("CIRCLE")) {
+                    int x = scan.nextInt();
+                    int y = scan.nextInt();
+                    int d = scan.nextInt();
+                    loaded.add(new Circle(Util.stringToColor(scan.next()), new Point(x, y), d));
+                } else if (shape.equalsIgnoreCase("RECTANGLE")) {
+                    int x = scan.nextInt();
+                    int y = scan.nextInt();
+                    int width = scan.nextInt();
+                    int height = scan.nextInt();
+                    loaded.add(new Rectangle(new Point(x, y), width, height, Util.stringToColor(scan.next())));
+                } else if (shape.equalsIgnoreCase("TRIANGLE")) {
+                    int x = scan.nextInt();
+                    int y = scan.nextInt();
+                    int base = scan.nextInt();
+                    int height = scan.nextInt();
+                    loaded.add(new Triangle(Util.stringToColor(scan.next()), new Point(x, y), base, height));
+                }
+            }
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,188 @@
+package drawshapes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SceneTest
+{
+    /**
+     * Dragging over the empty corner of a circle's bounding box, or the
+     * empty side of a triangle's, doesn't select it; reaching the shape
+     * does.
+     */
+    @Test
+    public void dragSelectsByExactShape() {
+        for (boolean compact : new boolean[] {false, true}) {
+            Scene scene = new Scene(compact);
+            // box 0..100 by 0..100
+            scene.addShape(new Circle(Color.RED, new Point(50, 50), 100));
+            // apex at (250, 0), base from 200 to 300 along y = 100
+            scene.addShape(new Triangle(Color.BLUE, new Point(250, 50), 100, 100));
+
+            scene.startDrag(new Point(0, 0));
+            scene.updateSelectRect(new Point(8, 8));
+            assertEquals(0, scene.getSelectedShapes().size());
+            scene.updateSelectRect(new Point(20, 20));
+            assertEquals(1, scene.getSelectedShapes().size());
+            scene.stopDrag();
+
+            scene.startDrag(new Point(200, 0));
+            scene.updateSelectRect(new Point(210, 10));
+            assertEquals(0, scene.getSelectedShapes().size());
+            scene.updateSelectRect(new Point(240, 30));
+            assertEquals(1, scene.getSelectedShapes().size());
+            // and shrinking back off it deselects it again
+            scene.updateSelectRect(new Point(210, 10));
+            assertEquals(0, scene.getSelectedShapes().size());
+            scene.stopDrag();
+        }
+    }
+
+    /**
+     * However the rectangle moves during a drag, the selection is the
+     * set of shapes that touch where it ends up.
+     */
+    @Test
+    public void dragSelectionMatchesFinalRectangle() {
+        Random random = new Random(3);
+        for (boolean compact : new boolean[] {false, true}) {
+            Scene scene = new Scene(compact);
+            for (int i = 0; i < 2000; i++) {
+                Point p = new Point(random.nextInt(1000), random.nextInt(1000));
+                int size = 5 + random.nextInt(40);
+                scene.addShape(i % 2 == 0 ? new Circle(Color.RED, p, size)
+                        : new Triangle(Color.GREEN, p, size, size));
+            }
+            scene.startDrag(new Point(500, 500));
+            Point end = null;
+            for (int step = 0; step < 30; step++) {
+                end = new Point(random.nextInt(1000), random.nextInt(1000));
+                scene.updateSelectRect(end);
+            }
+            scene.stopDrag();
+            SelectionRectangle rect = new SelectionRectangle(Math.min(500, end.x), Math.max(500, end.x),
+                    Math.min(500, end.y), Math.max(500, end.y));
+            int expected = 0;
+            for (IShape s : scene) {
+                boolean touches = rect.intersects(s);
+                assertEquals(touches, s.isSelected());
+                if (touches) {
+                    expected++;
+                }
+            }
+            assertTrue(expected > 0);
+            assertEquals(expected, scene.getSelectedShapes().size());
+        }
+    }
+
+    /**
+     * Publishing after removing shapes, putting them back and editing
+     * others gives a snapshot that matches the scene.
+     */
+    @Test
+    public void publishAfterRemoveAndUndoMatchesScene() throws IOException {
+        Random random = new Random(5);
+        for (boolean compact : new boolean[] {false, true}) {
+            Scene scene = new Scene(compact);
+            for (int i = 0; i < 5000; i++) {
+                scene.addShape(new Circle(Color.RED, new Point(random.nextInt(1000), random.nextInt(1000)), 10));
+            }
+            scene.publish();
+            List<SceneEdit> edits = new ArrayList<SceneEdit>();
+            for (int step = 0; step < 40; step++) {
+                List<IShape> shapes = new ArrayList<IShape>();
+                for (IShape s : scene) {
+                    shapes.add(s);
+                }
+                switch (random.nextInt(4)) {
+                case 0:
+                    List<IShape> doomed = new ArrayList<IShape>();
+                    for (int i = 0; i < 1 + random.nextInt(20); i++) {
+                        doomed.add(shapes.get(random.nextInt(shapes.size())));
+                    }
+                    edits.add(scene.removeShapes(doomed));
+                    break;
+                case 1:
+                    if (!edits.isEmpty()) {
+                        edits.remove(edits.size() - 1).undo(scene);
+                    }
+                    break;
+                case 2:
+                    edits.add(scene.addShape(new Circle(Color.BLUE, new Point(random.nextInt(1000), 0), 20)));
+                    break;
+                default:
+                    scene.setSelected(shapes.get(random.nextInt(shapes.size())), true);
+                    edits.add(scene.moveSelected(3, 4));
+                    scene.clearSelection();
+                    break;
+                }
+                if (random.nextInt(3) == 0) {
+                    SceneSnapshot snapshot = scene.publish();
+                    StringWriter text = new StringWriter();
+                    try (SceneWriter out = new SceneWriter(text)) {
+                        out.write(snapshot, null);
+                    }
+                    assertEquals(scene.size(), snapshot.size());
+                    assertEquals(scene.toString(), text.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * A copy shares its source's snapshot until one of them changes,
+     * but edits to either side never show up in the other.
+     */
+    @Test
+    public void copyStaysIndependentOfItsSource() {
+        for (boolean compact : new boolean[] {false, true}) {
+            Scene source = new Scene(compact);
+            for (int i = 0; i < 3000; i++) {
+                source.addShape(new Circle(Color.RED, new Point(i % 1000, i / 3), 10));
+            }
+            String original = source.toString();
+
+            // edit the copy first, then the source
+            Scene copy = source.copy();
+            copy.setSelected(copy.select(new Point(5, 0)).get(0), true);
+            copy.moveSelected(50, 50);
+            copy.addShape(new Circle(Color.BLUE, new Point(1, 1), 5));
+            assertEquals(original, source.toString());
+            String copied = copy.toString();
+            source.removeShapes(source.select(new Point(500, 166)));
+            source.setSelected(source.select(new Point(5, 0)).get(0), true);
+            source.changeColor(Color.GREEN);
+            source.clearSelection();
+            assertEquals(copied, copy.toString());
+            assertEquals(3001, copy.size());
+
+            // and the other way round, from a fresh copy
+            String edited = source.toString();
+            copy = source.copy();
+            source.addShape(new Circle(Color.BLUE, new Point(2, 2), 5));
+            source.publish();
+            assertEquals(edited, copy.toString());
+            copy.removeShapes(copy.select(new Point(900, 300)));
+            assertEquals(edited.length() + "CIRCLE 2 2 5 BLUE false\n".length(), source.toString().length());
+            assertTrue(copy.size() < source.size() - 1);
+
+            // update() shares the same way
+            Scene target = new Scene(compact);
+            target.update(source);
+            String updated = source.toString();
+            target.addShape(new Circle(Color.RED, new Point(3, 3), 5));
+            assertEquals(updated, source.toString());
+            assertEquals(source.size() + 1, target.size());
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package drawshapes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ShapeGridTest
+{
+    /**
+     * A square millions of cells across goes in the oversized list rather
+     * than into every cell, and can still be found, moved and removed.
+     */
+    @Test
+    public void loadsHugeShape() throws IOException {
+        File file = File.createTempFile("huge", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "SQUARE 0 0 300000 RED\n".getBytes(StandardCharsets.US_ASCII));
+        for (boolean compact : new boolean[] {false, true}) {
+            Scene scene = new Scene(compact);
+            scene.loadFromFile(file);
+            assertEquals(1, scene.size());
+            IShape huge = scene.pickTopmost(new Point(100000, 100000));
+            assertEquals(1, scene.select(new Point(100000, 100000)).size());
+            assertEquals(0, scene.select(new Point(200000, 0)).size());
+
+            scene.addShape(new Circle(Color.BLUE, new Point(1000, 1000), 10));
+            IShape small = scene.pickTopmost(new Point(1000, 1000));
+            assertEquals(1, scene.select(small).size());
+
+            scene.setSelected(huge, true);
+            scene.moveSelected(-400000, 0);
+            assertEquals(0, scene.select(small).size());
+            assertEquals(1, scene.select(new Point(-300000, 100000)).size());
+
+            scene.removeShapes(Collections.singletonList(scene.pickTopmost(new Point(-300000, 100000))));
+            assertEquals(1, scene.size());
+            assertNull(scene.pickTopmost(new Point(-300000, 100000)));
+        }
+    }
+
+    /**
+     * A shape that shrinks from oversized to a few cells, re-indexed by
+     * the rebuild in reindex(), must come out of the cells when removed.
+     */
+    @Test
+    public void shapeThatShrinksLeavesTheCellsOnRemove() {
+        ShapeGrid grid = new ShapeGrid();
+        Rectangle big = new Rectangle(new Point(750, 750), 1500, 1500, Color.RED);
+        grid.insert(big);
+        big.setGeometry(new int[] {995, 995, 10, 10}, 0);
+        grid.reindex();
+        assertEquals(1, grid.query(new Point(1000, 1000)).size());
+        grid.remove(big);
+        assertEquals(0, grid.size());
+        assertEquals(0, grid.query(new Point(1000, 1000)).size());
+        assertEquals(0, grid.query(990, 1010, 990, 1010).size());
+    }
+
+    @Test
+    public void queryIsInDrawingOrder() {
+        ShapeGrid grid = new ShapeGrid();
+        IShape big = new Square(Color.RED, 0, 0, 100000);
+        IShape a = new Circle(Color.RED, new Point(10, 10), 20);
+        IShape b = new Circle(Color.RED, new Point(12, 12), 20);
+        grid.insert(a);
+        grid.insert(big);
+        grid.insert(b);
+        List<IShape> found = grid.query(new Point(10, 10));
+        assertEquals(3, found.size());
+        assertSame(a, found.get(0));
+        assertSame(big, found.get(1));
+        assertSame(b, found.get(2));
+        assertEquals(3, grid.query(0, 20, 0, 20).size());
+    }
+}